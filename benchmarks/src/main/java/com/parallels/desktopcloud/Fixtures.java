@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+
+// Builds inventories of any size from recorded 'prlctl list' outputs of one
+// VM by giving each copy its own UUID and name.
+final class Fixtures
+{
+	static final String LIST_INFO = "fixtures/list-info.json";
+	static final String LIST_FAST = "fixtures/list-fast.json";
+	static final String CLONE_OUTPUT = "fixtures/clone-output.txt";
+
+	private static final String RECORDED_UUID = "9d3b8e52-4a1f-4c6e-8f0a-2b7c1d9e5a34";
+	private static final String RECORDED_NAME = "macOS 10.12 builder";
+
+	private Fixtures()
+	{
+	}
+
+	static String load(String name) throws IOException
+	{
+		InputStream in = Fixtures.class.getResourceAsStream(name);
+		if (in == null)
+			throw new IOException("Missing fixture " + name);
+		return PrlctlServer.readAll(new InputStreamReader(in, "UTF-8"));
+	}
+
+	static String uuid(int i)
+	{
+		return String.format("%08x-%s", i, RECORDED_UUID.substring(9));
+	}
+
+	static String name(int i)
+	{
+		return RECORDED_NAME + " " + i;
+	}
+
+	// Replicates the single VM object of a recorded list output vmCount times.
+	static String inventory(String name, int vmCount) throws IOException
+	{
+		String recorded = load(name).trim();
+		String vm = recorded.substring(1, recorded.length() - 1).trim();
+		StringBuilder result = new StringBuilder(vm.length() * vmCount + 2);
+		result.append('[');
+		for (int i = 0; i < vmCount; i++)
+		{
+			if (i > 0)
+				result.append(',');
+			result.append(vm.replace(RECORDED_UUID, uuid(i))
+					.replace(RECORDED_NAME, name(i)));
+		}
+		result.append(']');
+		return result.toString();
+	}
+
+	static List<String> labels(int vmCount, int labelsPerVm)
+	{
+		List<String> result = new ArrayList<String>(vmCount);
+		for (int i = 0; i < vmCount; i++)
+		{
+			StringBuilder s = new StringBuilder("macos");
+			for (int j = 0; j < labelsPerVm; j++)
+				s.append(" l").append((i + j) % 32);
+			result.add(s.toString());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// Parsing of 'prlctl list' outputs and the inventory lookups done for every
+// provisioned VM.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InventoryBenchmark
+{
+	@Param({ "10", "100", "1000" })
+	int vmCount;
+
+	private String listInfo;
+	private String listFast;
+	private List<VMInfo> inventory;
+	private String lastVmId;
+	private String lastVmName;
+	private VMInfo lastVm;
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		listInfo = Fixtures.inventory(Fixtures.LIST_INFO, vmCount);
+		listFast = Fixtures.inventory(Fixtures.LIST_FAST, vmCount);
+		inventory = VMInfoParser.parse(new StringReader(listInfo));
+		lastVmId = "{" + Fixtures.uuid(vmCount - 1) + "}";
+		lastVmName = Fixtures.name(vmCount - 1);
+		lastVm = inventory.get(vmCount - 1);
+	}
+
+	@Benchmark
+	public List<VMInfo> parseListInfo() throws IOException
+	{
+		return VMInfoParser.parse(new StringReader(listInfo));
+	}
+
+	@Benchmark
+	public List<VMInfo> parseListFast() throws IOException
+	{
+		return VMInfoParser.parse(new StringReader(listFast));
+	}
+
+	// The worst case of getVMInfo(): the VM is the last one in the inventory.
+	@Benchmark
+	public VMInfo findVMById()
+	{
+		return ParallelsDesktopConnectorSlaveComputer.findVM(inventory, lastVmId);
+	}
+
+	@Benchmark
+	public VMInfo findVMByName()
+	{
+		return ParallelsDesktopConnectorSlaveComputer.findVM(inventory, lastVmName);
+	}
+
+	@Benchmark
+	public VMResources parseVMResources()
+	{
+		return VMResources.fromVMInfo(lastVm);
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import hudson.model.labels.LabelExpression;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// Candidate selection of ParallelsDesktopCloud.provision()/canProvision() on
+// a real cloud. Parsing label strings needs a running Jenkins, so the label
+// sets of the VMs are built from LabelAtom directly and put in place before
+// the cloud indexes them. The cloud caches the candidates of every label it
+// has seen; the select* benchmarks empty that cache first to measure the
+// index lookup and the scan themselves.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LabelMatchBenchmark
+{
+	@Param({ "10", "100", "1000" })
+	int vmCount;
+
+	@Param({ "2", "8" })
+	int labelsPerVm;
+
+	private final Map<String, LabelAtom> atoms = new HashMap<String, LabelAtom>();
+	private ParallelsDesktopCloud cloud;
+	private Map<?, ?> candidateCache;
+	private LabelAtom atom;
+	private Label expression;
+
+	private LabelAtom getAtom(String name)
+	{
+		LabelAtom result = atoms.get(name);
+		if (result == null)
+		{
+			result = new LabelAtom(name);
+			atoms.put(name, result);
+		}
+		return result;
+	}
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		Field labelSet = ParallelsDesktopVM.class.getDeclaredField("labelSet");
+		labelSet.setAccessible(true);
+		List<ParallelsDesktopVM> vms = new ArrayList<ParallelsDesktopVM>(vmCount);
+		int i = 0;
+		for (String labels : Fixtures.labels(vmCount, labelsPerVm))
+		{
+			ParallelsDesktopVM vm = new ParallelsDesktopVM(Fixtures.name(i++), labels, "/tmp", null,
+					ParallelsDesktopVM.PostBuildBehaviors.Suspend.name(), null);
+			Set<LabelAtom> set = new HashSet<LabelAtom>();
+			for (String name : labels.split(" "))
+				set.add(getAtom(name));
+			labelSet.set(vm, set);
+			vms.add(vm);
+		}
+		cloud = new ParallelsDesktopCloud("bench", "", "/tmp", null, false, vms);
+		Field labelCandidates = ParallelsDesktopCloud.class.getDeclaredField("labelCandidates");
+		labelCandidates.setAccessible(true);
+		candidateCache = (Map<?, ?>)labelCandidates.get(cloud);
+		atom = getAtom("l7");
+		expression = new LabelExpression.And(getAtom("macos"), atom);
+	}
+
+	@Benchmark
+	public boolean canProvisionAtom()
+	{
+		return cloud.canProvision(atom);
+	}
+
+	@Benchmark
+	public boolean canProvisionExpression()
+	{
+		return cloud.canProvision(expression);
+	}
+
+	@Benchmark
+	public boolean selectAtom()
+	{
+		candidateCache.clear();
+		return cloud.canProvision(atom);
+	}
+
+	@Benchmark
+	public boolean selectExpression()
+	{
+		candidateCache.clear();
+		return cloud.canProvision(expression);
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.io.IOException;
+
+
+// Availability of one connector host. Failed pings and connection attempts
+// mark the host unavailable and push the next reconnect out exponentially;
+// while unavailable, VM operations on the host fail at once.
+final class ConnectorHealth
+{
+	private static final long MIN_BACKOFF = 5 * 1000;
+	private static final long MAX_BACKOFF = 5 * 60 * 1000;
+
+	private final String hostName;
+	private boolean available = true;
+	private int failures;
+	private long nextReconnect;
+	private String lastError;
+
+	ConnectorHealth(String hostName)
+	{
+		this.hostName = hostName;
+	}
+
+	synchronized boolean isAvailable()
+	{
+		return available;
+	}
+
+	synchronized void onSuccess()
+	{
+		available = true;
+		failures = 0;
+		lastError = null;
+	}
+
+	synchronized void onFailure(String error)
+	{
+		available = false;
+		long backoff = MIN_BACKOFF << Math.min(failures, 16);
+		++failures;
+		nextReconnect = System.currentTimeMillis() + Math.min(backoff, MAX_BACKOFF);
+		lastError = error;
+	}
+
+	// True once per backoff period while the host is unavailable; the caller
+	// is expected to make one reconnect attempt and report its outcome with
+	// onSuccess() or onFailure().
+	synchronized boolean claimReconnect()
+	{
+		long now = System.currentTimeMillis();
+		if (available || now < nextReconnect)
+			return false;
+		nextReconnect = now + MAX_BACKOFF; // until the attempt reports back
+		return true;
+	}
+
+	synchronized IOException unavailable()
+	{
+		long retryIn = Math.max(nextReconnect - System.currentTimeMillis(), 0) / 1000;
+		return new IOException(String.format("Host '%s' is unavailable (%s), next reconnect in %d s",
+				hostName, lastError, retryIn));
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.io.Serializable;
+
+
+// One sample of the live load of a connector host.
+final class HostLoad implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private final long freeRam;
+	private final long totalSwap;
+	private final long freeSwap;
+	private final double loadAverage;
+
+	HostLoad(long freeRam, long totalSwap, long freeSwap, double loadAverage)
+	{
+		this.freeRam = freeRam;
+		this.totalSwap = totalSwap;
+		this.freeSwap = freeSwap;
+		this.loadAverage = loadAverage;
+	}
+
+	// Bytes of physical memory not used by anything, -1 if unknown.
+	long getFreeRam()
+	{
+		return freeRam;
+	}
+
+	long getUsedSwap()
+	{
+		if (totalSwap < 0 || freeSwap < 0)
+			return -1;
+		return totalSwap - freeSwap;
+	}
+
+	// One minute load average, negative if unknown.
+	double getLoadAverage()
+	{
+		return loadAverage;
+	}
+
+	String toLogString()
+	{
+		return String.format("free RAM=%d swap used=%d load=%.2f", freeRam, getUsedSwap(), loadAverage);
+	}
+}
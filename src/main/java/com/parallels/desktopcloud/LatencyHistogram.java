@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import net.sf.json.JSONObject;
+
+
+// Lock-free latency histogram with power-of-two millisecond buckets. Cheap
+// enough to update on every prlctl call; percentiles are bucket upper bounds.
+final class LatencyHistogram
+{
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	void record(long millis)
+	{
+		if (millis < 0)
+			millis = 0;
+		int bucket = 64 - Long.numberOfLeadingZeros(millis);
+		buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		count.incrementAndGet();
+		sum.addAndGet(millis);
+		long m;
+		while (millis > (m = max.get()) && !max.compareAndSet(m, millis))
+			;
+	}
+
+	void recordError()
+	{
+		errors.incrementAndGet();
+	}
+
+	long getCount()
+	{
+		return count.get();
+	}
+
+	long getErrors()
+	{
+		return errors.get();
+	}
+
+	long getMean()
+	{
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+
+	long getMax()
+	{
+		return max.get();
+	}
+
+	long getPercentile(double p)
+	{
+		long n = count.get();
+		if (n == 0)
+			return 0;
+		long rank = (long)Math.ceil(p * n);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += buckets.get(i);
+			if (seen >= rank)
+				return Math.min(i == 0 ? 0 : (1L << i) - 1, getMax());
+		}
+		return getMax();
+	}
+
+	JSONObject toJSON()
+	{
+		JSONObject o = new JSONObject();
+		o.put("count", getCount());
+		o.put("errors", getErrors());
+		o.put("mean", getMean());
+		o.put("p50", getPercentile(0.5));
+		o.put("p95", getPercentile(0.95));
+		o.put("p99", getPercentile(0.99));
+		o.put("max", getMax());
+		return o;
+	}
+}
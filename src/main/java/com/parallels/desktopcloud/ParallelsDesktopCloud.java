@@ -25,21 +25,38 @@
 package com.parallels.desktopcloud;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Label;
 import hudson.model.Node;
 import hudson.slaves.Cloud;
 import hudson.slaves.ComputerLauncher;
+import hudson.model.labels.LabelAtom;
 import hudson.slaves.NodeProvisioner;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 
 public final class ParallelsDesktopCloud extends Cloud
@@ -51,7 +68,25 @@ public final class ParallelsDesktopCloud extends Cloud
 	private final String labelString;
 	private final String remoteFS;
 	private final boolean useConnectorAsBuilder;
-	private transient ParallelsDesktopConnectorSlave connectorSlave;
+	private int maxParallelStarts = DEFAULT_MAX_PARALLEL_STARTS;
+	private static final int DEFAULT_MAX_PARALLEL_STARTS = 4;
+	private int minIdleMinutes = DEFAULT_MIN_IDLE_MINUTES;
+	private int maxIdleMinutes = DEFAULT_MAX_IDLE_MINUTES;
+	private static final int DEFAULT_MIN_IDLE_MINUTES = 1;
+	private static final int DEFAULT_MAX_IDLE_MINUTES = 10;
+	private double cpuOvercommitRatio = DEFAULT_OVERCOMMIT_RATIO;
+	private double ramOvercommitRatio = DEFAULT_OVERCOMMIT_RATIO;
+	private static final double DEFAULT_OVERCOMMIT_RATIO = 1.0;
+	private List<ParallelsDesktopHost> hosts;
+	private List<ParallelsDesktopWarmPool> warmPools;
+	private transient Map<String, ParallelsDesktopConnectorSlave> connectorSlaves;
+	private transient Map<ParallelsDesktopVM, String> slaveNames;
+	private transient AtomicInteger cloneCounter;
+	private transient Map<LabelAtom, List<ParallelsDesktopVM>> labelIndex;
+	private transient ConcurrentMap<Label, List<ParallelsDesktopVM>> labelCandidates;
+	private transient ConcurrentMap<String, ParallelsDesktopVM> slaveIndex;
+	private transient volatile boolean draining;
+	private transient volatile boolean drainingForRestart;
 
 	@DataBoundConstructor
 	public ParallelsDesktopCloud(String name, String labelString, String remoteFS, ComputerLauncher pdLauncher,
@@ -66,87 +101,770 @@ public final class ParallelsDesktopCloud extends Cloud
 			this.vms = vms;
 		this.pdLauncher = pdLauncher;
 		this.useConnectorAsBuilder = useConnectorAsBuilder;
+		buildIndexes();
+	}
+
+	private Object readResolve()
+	{
+		buildIndexes();
+		return this;
+	}
+
+	private void buildIndexes()
+	{
+		connectorSlaves = new HashMap<String, ParallelsDesktopConnectorSlave>();
+		cloneCounter = new AtomicInteger();
+		// The same VM ID may be listed several times to run it on several hosts
+		// at once, so such entries get numbered slave names.
+		Map<String, Integer> vmIdCounts = new HashMap<String, Integer>();
+		for (ParallelsDesktopVM vm : vms)
+		{
+			Integer count = vmIdCounts.get(vm.getVmid());
+			vmIdCounts.put(vm.getVmid(), count == null ? 1 : count + 1);
+		}
+		slaveNames = new HashMap<ParallelsDesktopVM, String>();
+		for (int i = 0; i < vms.size(); i++)
+		{
+			ParallelsDesktopVM vm = vms.get(i);
+			String slaveName = name + " " + vm.getVmid();
+			if (vmIdCounts.get(vm.getVmid()) > 1)
+				slaveName += " #" + (i + 1);
+			slaveNames.put(vm, slaveName);
+		}
+		labelIndex = new HashMap<LabelAtom, List<ParallelsDesktopVM>>();
+		for (ParallelsDesktopVM vm : vms)
+		{
+			for (LabelAtom atom : vm.getLabelSet())
+			{
+				List<ParallelsDesktopVM> atomVms = labelIndex.get(atom);
+				if (atomVms == null)
+				{
+					atomVms = new ArrayList<ParallelsDesktopVM>();
+					labelIndex.put(atom, atomVms);
+				}
+				atomVms.add(vm);
+			}
+		}
+		labelCandidates = new ConcurrentHashMap<Label, List<ParallelsDesktopVM>>();
+		slaveIndex = new ConcurrentHashMap<String, ParallelsDesktopVM>();
+	}
+
+	// VMs whose labels satisfy the given label expression. A single atom is looked
+	// up in the index directly; other expressions are evaluated once and cached.
+	private List<ParallelsDesktopVM> getCandidates(Label label)
+	{
+		List<ParallelsDesktopVM> candidates = labelCandidates.get(label);
+		if (candidates != null)
+			return candidates;
+		Collection<ParallelsDesktopVM> scope = vms;
+		if (label instanceof LabelAtom)
+		{
+			scope = labelIndex.get(label);
+			if (scope == null)
+				scope = Collections.emptyList();
+		}
+		candidates = new ArrayList<ParallelsDesktopVM>();
+		for (ParallelsDesktopVM vm : scope)
+		{
+			if (label.matches(vm.getLabelSet()))
+				candidates.add(vm);
+		}
+		labelCandidates.put(label, candidates);
+		return candidates;
 	}
 
 	@Override
-	public Collection<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload)
+	public synchronized Collection<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload)
 	{
-		LOGGER.log(Level.SEVERE, "Going to provision %d executors", excessWorkload);
+		LOGGER.log(Level.FINE, "Going to provision %d executors", excessWorkload);
 		Collection<NodeProvisioner.PlannedNode> result = new ArrayList<NodeProvisioner.PlannedNode>();
-		final ParallelsDesktopConnectorSlaveComputer connector = getConnector();
-		if (connector.isOffline())
+		checkRestartCancelled();
+		if (draining || getOnlineConnectors().isEmpty())
 		{
 			return result;
 		}
-		for (int i = 0; (i < vms.size()) && (excessWorkload > 0); i++)
+		List<ParallelsDesktopVM> candidates = label == null ? vms : getCandidates(label);
+		for (int i = 0; (i < candidates.size()) && (excessWorkload > 0); i++)
 		{
-			final ParallelsDesktopVM vm = vms.get(i);
-			if (vm.isProvisioned())
-				continue;
-			if (!label.matches(Label.parse(vm.getLabels())))
+			final ParallelsDesktopVM vm = candidates.get(i);
+			if (vm.isTemplate())
+			{
+				excessWorkload -= provisionClones(vm, excessWorkload, result);
 				continue;
-			if (!connector.startVM(vm))
+			}
+			if (!vm.reserve())
 				continue;
-			final String vmId = vm.getVmid();
-			final String slaveName = name + " " + vmId;
-			vm.setSlaveName(slaveName);
-			--excessWorkload;
+			final String slaveName = slaveNames.get(vm);
+			setSlaveName(vm, slaveName);
+			peekKnownCpus(vm);
+			int executors = vm.getExecutorCount();
+			excessWorkload -= executors;
 			result.add(new NodeProvisioner.PlannedNode(slaveName,
 				Computer.threadPoolForRemoting.submit(new Callable<Node>()
 				{
 					@Override
 					public Node call() throws Exception
 					{
-						return connector.createSlaveOnVM(vm);
+						return provisionOnBestHost(vm);
 					}
-				}), 1));
+				}), executors));
 		}
 		return result;
 	}
 
-	private ParallelsDesktopConnectorSlaveComputer getConnector()
+	// Returns the number of executors planned.
+	private int provisionClones(final ParallelsDesktopVM template, int excessWorkload,
+			Collection<NodeProvisioner.PlannedNode> result)
+	{
+		int count = 0;
+		// Clones take the CPU count of their template.
+		peekKnownCpus(template);
+		while (count < excessWorkload)
+		{
+			String cloneId = template.getVmid() + "-" + Long.toString(System.currentTimeMillis(), 36)
+					+ "-" + cloneCounter.incrementAndGet();
+			final ParallelsDesktopVM clone = template.createClone(cloneId);
+			if (clone == null)
+				break;
+			clone.reserve();
+			final String slaveName = name + " " + cloneId;
+			setSlaveName(clone, slaveName);
+			int executors = clone.getExecutorCount();
+			count += executors;
+			result.add(new NodeProvisioner.PlannedNode(slaveName,
+				Computer.threadPoolForRemoting.submit(new Callable<Node>()
+				{
+					@Override
+					public Node call() throws Exception
+					{
+						return provisionClone(template, clone);
+					}
+				}), executors));
+		}
+		return count;
+	}
+
+	// Clones on the first host which manages to. A clone which then fails to
+	// start is deleted right away together with its template slot.
+	private Node provisionClone(ParallelsDesktopVM template, ParallelsDesktopVM clone) throws Exception
+	{
+		for (ParallelsDesktopConnectorSlaveComputer connector : placeVM(template))
+		{
+			if (!connector.cloneVM(template, clone))
+				continue;
+			Node n = connector.provisionVM(clone);
+			if (n != null)
+				return n;
+			connector.postBuildAction(clone);
+			throw new Exception("Failed to start clone '" + clone.getVmid() + "'");
+		}
+		clone.getLifecycle().transition(VMLifecycle.State.Reserved, VMLifecycle.State.Failed);
+		clone.releaseCloneSlot();
+		onCloneDeleted(clone);
+		throw new Exception("No host is able to clone VM '" + template.getVmid() + "'");
+	}
+
+	void onCloneDeleted(ParallelsDesktopVM clone)
+	{
+		String slaveName = clone.getSlaveName();
+		if (slaveName != null)
+			slaveIndex.remove(slaveName, clone);
+	}
+
+	// Holds the provision() lock from counting the pool to reserving its VMs,
+	// so concurrent refills can't both fill the same deficit.
+	synchronized void refillWarmPools()
+	{
+		checkRestartCancelled();
+		if (draining)
+			return;
+		for (ParallelsDesktopWarmPool pool : getWarmPools())
+		{
+			Label label = pool.getLabel();
+			int deficit = pool.getSize() - countWarmVms(label, true);
+			if (deficit <= 0)
+				continue;
+			LOGGER.log(Level.INFO, "Refilling warm pool for '%s' with %d VMs", pool.getLabelString(), deficit);
+			// Pool sizes count VMs, while provision() counts executors.
+			List<NodeProvisioner.PlannedNode> plannedNodes = new ArrayList<NodeProvisioner.PlannedNode>();
+			for (int i = 0; i < deficit; i++)
+			{
+				Collection<NodeProvisioner.PlannedNode> planned = provision(label, 1);
+				if (planned.isEmpty())
+					break;
+				plannedNodes.addAll(planned);
+			}
+			for (final NodeProvisioner.PlannedNode plannedNode : plannedNodes)
+			{
+				Computer.threadPoolForRemoting.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							Jenkins.getInstance().addNode(plannedNode.future.get());
+						}
+						catch (Exception ex)
+						{
+							LOGGER.log(Level.WARNING, "Error: %s\nFailed to add warm VM '%s'", ex, plannedNode.displayName);
+						}
+					}
+				});
+			}
+		}
+	}
+
+	// Idle VM slaves for the label. Slaves which are still connecting and, if
+	// requested, VMs which are still being started count as idle too.
+	private int countWarmVms(Label label, boolean includeStarting)
+	{
+		int count = 0;
+		for (ParallelsDesktopVM vm : slaveIndex.values())
+		{
+			if (!vm.isProvisioned() || !label.matches(vm.getLabelSet()))
+				continue;
+			ParallelsDesktopVMSlave slave = vm.getSlave();
+			if (slave == null)
+			{
+				if (includeStarting)
+					++count;
+				continue;
+			}
+			Computer c = slave.toComputer();
+			if (c != null && c.isIdle() && c.isAcceptingTasks() && (c.isOnline() || c.isConnecting()))
+				++count;
+		}
+		return count;
+	}
+
+	void onVmTaken(ParallelsDesktopVM vm)
+	{
+		for (ParallelsDesktopWarmPool pool : getWarmPools())
+		{
+			if (pool.getLabel().matches(vm.getLabelSet()))
+			{
+				Computer.threadPoolForRemoting.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						refillWarmPools();
+					}
+				});
+				return;
+			}
+		}
+	}
+
+	boolean isNeededForWarmPool(ParallelsDesktopVM vm)
+	{
+		if (draining)
+			return false;
+		for (ParallelsDesktopWarmPool pool : getWarmPools())
+		{
+			Label label = pool.getLabel();
+			if (label.matches(vm.getLabelSet()) && countWarmVms(label, false) <= pool.getSize())
+				return true;
+		}
+		return false;
+	}
+
+	private Node provisionOnBestHost(ParallelsDesktopVM vm) throws Exception
+	{
+		for (ParallelsDesktopConnectorSlaveComputer connector : placeVM(vm))
+		{
+			Node n = connector.provisionVM(vm);
+			if (n != null)
+				return n;
+		}
+		vm.getLifecycle().transition(VMLifecycle.State.Reserved, VMLifecycle.State.Failed);
+		throw new Exception("No host is able to start VM '" + vm.getVmid() + "'");
+	}
+
+	// Online hosts which have the VM, best fit first: the host left with the
+	// least CPU and RAM headroom after starting the VM comes first, so large
+	// VMs still find a host with enough room later.
+	private List<ParallelsDesktopConnectorSlaveComputer> placeVM(ParallelsDesktopVM vm)
+	{
+		List<ParallelsDesktopConnectorSlaveComputer> connectors = getOnlineConnectors();
+		if (connectors.size() <= 1)
+			return connectors;
+		final Map<ParallelsDesktopConnectorSlaveComputer, Double> scores =
+				new HashMap<ParallelsDesktopConnectorSlaveComputer, Double>();
+		for (ParallelsDesktopConnectorSlaveComputer connector : connectors)
+		{
+			Double score = connector.getPlacementScore(vm);
+			if (score != null)
+				scores.put(connector, score);
+		}
+		List<ParallelsDesktopConnectorSlaveComputer> result =
+				new ArrayList<ParallelsDesktopConnectorSlaveComputer>(scores.keySet());
+		Collections.sort(result, new Comparator<ParallelsDesktopConnectorSlaveComputer>()
+		{
+			@Override
+			public int compare(ParallelsDesktopConnectorSlaveComputer c1, ParallelsDesktopConnectorSlaveComputer c2)
+			{
+				return Double.compare(scores.get(c1), scores.get(c2));
+			}
+		});
+		LOGGER.logVM(vm.getVmid(), Level.FINE, "Placement for VM '%s': %d of %d hosts", vm.getVmid(), result.size(), connectors.size());
+		return result;
+	}
+
+	// "auto" executors of a planned node are sized by the CPUs the VM has in
+	// the cached host inventories, which may differ from the profile or the
+	// last provisioning. Runs under the cloud lock, so it never asks a host:
+	// without a cached inventory the last known count stays.
+	private void peekKnownCpus(ParallelsDesktopVM vm)
+	{
+		if (!vm.hasAutoExecutors())
+			return;
+		for (ParallelsDesktopConnectorSlaveComputer connector : getOnlineConnectors())
+		{
+			if (connector.peekKnownCpus(vm))
+				return;
+		}
+	}
+
+	private List<ParallelsDesktopConnectorSlaveComputer> getOnlineConnectors()
+	{
+		List<ParallelsDesktopConnectorSlaveComputer> result = new ArrayList<ParallelsDesktopConnectorSlaveComputer>();
+		ParallelsDesktopConnectorSlaveComputer connector = getConnector(null);
+		if (connector != null && !connector.isOffline() && connector.isHostAvailable())
+			result.add(connector);
+		for (ParallelsDesktopHost host : getHosts())
+		{
+			connector = getConnector(host);
+			if (connector != null && !connector.isOffline() && connector.isHostAvailable())
+				result.add(connector);
+		}
+		return result;
+	}
+
+	private ParallelsDesktopConnectorSlaveComputer getConnector(ParallelsDesktopHost host)
 	{
 		try
 		{
-			if (connectorSlave == null)
+			String key = host == null ? "" : host.getName();
+			ParallelsDesktopConnectorSlave connectorSlave;
+			synchronized (connectorSlaves)
 			{
-				String slaveName = name + " host slave";
-				connectorSlave = new ParallelsDesktopConnectorSlave(this, slaveName, labelString, remoteFS, pdLauncher, useConnectorAsBuilder);
-				Jenkins.getInstance().addNode(connectorSlave);
+				connectorSlave = connectorSlaves.get(key);
+				if (connectorSlave == null)
+				{
+					if (host == null)
+						connectorSlave = new ParallelsDesktopConnectorSlave(this, name + " host slave",
+								labelString, remoteFS, pdLauncher, useConnectorAsBuilder);
+					else
+						connectorSlave = new ParallelsDesktopConnectorSlave(this, name + " host slave " + key,
+								host.getLabelString(), host.getRemoteFS(), host.getLauncher(), host.getUseAsBuilder());
+					Jenkins.getInstance().addNode(connectorSlave);
+					connectorSlaves.put(key, connectorSlave);
+				}
 			}
 			return (ParallelsDesktopConnectorSlaveComputer)connectorSlave.toComputer();
 		}
 		catch(Exception ex)
 		{
-			LOGGER.log(Level.SEVERE, "Error: %s", ex);
+			LOGGER.log(Level.WARNING, "Error: %s", ex);
 		}
 		return null;
 	}
 
-	void connectorTerminated()
+	private void setSlaveName(ParallelsDesktopVM vm, String slaveName)
 	{
-		connectorSlave = null;
+		String oldName = vm.getSlaveName();
+		if (oldName != null)
+			slaveIndex.remove(oldName, vm);
+		vm.setSlaveName(slaveName);
+		slaveIndex.put(slaveName, vm);
 	}
 
-	@Override
-	public boolean canProvision(Label label)
+	// Key of the connector in connectorSlaves: the host name, empty for the
+	// default host.
+	String getHostKey(ParallelsDesktopConnectorSlave connectorSlave)
+	{
+		synchronized (connectorSlaves)
+		{
+			for (Map.Entry<String, ParallelsDesktopConnectorSlave> e : connectorSlaves.entrySet())
+			{
+				if (e.getValue() == connectorSlave)
+					return e.getKey();
+			}
+		}
+		return null;
+	}
+
+	// Re-attaches the VMs leased before a restart, one host at a time so slow
+	// hosts don't hold up the others. Called at startup and then by the host
+	// health work for the leases which couldn't be reconciled yet.
+	void reattachVMs()
+	{
+		Map<String, List<VMLeaseStore.Lease>> byHost = new HashMap<String, List<VMLeaseStore.Lease>>();
+		for (VMLeaseStore.Lease lease : VMLeaseStore.get().takePending(name))
+		{
+			List<VMLeaseStore.Lease> hostLeases = byHost.get(lease.getHost());
+			if (hostLeases == null)
+			{
+				hostLeases = new ArrayList<VMLeaseStore.Lease>();
+				byHost.put(lease.getHost(), hostLeases);
+			}
+			hostLeases.add(lease);
+		}
+		for (final Map.Entry<String, List<VMLeaseStore.Lease>> e : byHost.entrySet())
+		{
+			Computer.threadPoolForRemoting.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					reattachVMs(e.getKey(), e.getValue());
+				}
+			});
+		}
+	}
+
+	private void reattachVMs(String hostKey, List<VMLeaseStore.Lease> leases)
+	{
+		VMLeaseStore store = VMLeaseStore.get();
+		boolean hostFound = hostKey.isEmpty();
+		for (ParallelsDesktopHost host : getHosts())
+			hostFound |= hostKey.equals(host.getName());
+		if (!hostFound)
+		{
+			for (VMLeaseStore.Lease lease : leases)
+			{
+				LOGGER.logVM(lease.getVmId(), Level.INFO, "Dropping lease of VM '%s': host '%s' is gone", lease.getVmId(), hostKey);
+				store.remove(lease.getSlaveName());
+			}
+			return;
+		}
+		ParallelsDesktopConnectorSlaveComputer connector = null;
+		if (hostKey.isEmpty())
+			connector = getConnector(null);
+		for (ParallelsDesktopHost host : getHosts())
+		{
+			if (hostKey.equals(host.getName()))
+				connector = getConnector(host);
+		}
+		for (VMLeaseStore.Lease lease : leases)
+		{
+			try
+			{
+				if (connector == null)
+					throw new IOException("No connector for host '" + hostKey + "'");
+				if (reattachVM(connector, lease))
+					store.setReattached(lease);
+				else
+					store.remove(lease.getSlaveName());
+			}
+			catch (Exception ex)
+			{
+				LOGGER.logVM(lease.getVmId(), Level.INFO, "Error: %s\nWill retry re-attaching VM '%s'", ex, lease.getVmId());
+				store.retryLater(lease);
+			}
+		}
+	}
+
+	// Returns true if the VM got its slave back, false if the lease is void.
+	// Throws if the host couldn't be asked, with the VM entry left free.
+	private boolean reattachVM(ParallelsDesktopConnectorSlaveComputer connector, VMLeaseStore.Lease lease)
+			throws Exception
 	{
-		if (label != null)
+		ParallelsDesktopVM vm = getLeasedVm(lease);
+		if (vm == null)
+		{
+			LOGGER.logVM(lease.getVmId(), Level.INFO, "Dropping lease of VM '%s': no such VM in cloud '%s'", lease.getVmId(), name);
+			return false;
+		}
+		if (!vm.reserve())
+			return false;
+		setSlaveName(vm, lease.getSlaveName());
+		vm.setPrevVMState(lease.getPrevVMState());
+		Node n;
+		try
+		{
+			n = connector.reattachVM(vm, lease.getIP());
+		}
+		catch (Exception ex)
 		{
-			for (ParallelsDesktopVM vm : vms)
+			VMLifecycle lifecycle = vm.getLifecycle();
+			if (lifecycle.beginRelease())
+				lifecycle.finishRelease(true);
+			if (vm.isClone())
 			{
-				if (label.matches(Label.parse(vm.getLabels())))
-					return true;
+				// The clone stays on the host; the retry takes a new slot for it.
+				vm.releaseCloneSlot();
+				onCloneDeleted(vm);
 			}
+			throw ex;
 		}
+		if (n == null)
+			return false;
+		try
+		{
+			Jenkins.getInstance().addNode(n);
+			return true;
+		}
+		catch (IOException ex)
+		{
+			LOGGER.logVM(vm.getVmid(), Level.WARNING, "Error: %s\nFailed to add slave '%s'", ex, lease.getSlaveName());
+		}
+		connector.postBuildAction(vm);
+		vm.onSlaveReleased(vm.getSlave());
 		return false;
 	}
 
+	// The configured VM entry a lease was taken for, or a new clone of its
+	// template.
+	private ParallelsDesktopVM getLeasedVm(VMLeaseStore.Lease lease)
+	{
+		for (ParallelsDesktopVM vm : vms)
+		{
+			if (lease.getTemplate() == null)
+			{
+				if (vm.getVmid().equals(lease.getVmId()) && lease.getSlaveName().equals(slaveNames.get(vm)))
+					return vm;
+			}
+			else if (vm.isTemplate() && vm.getVmid().equals(lease.getTemplate()))
+				return vm.createClone(lease.getVmId());
+		}
+		return null;
+	}
+
+	Collection<ParallelsDesktopVM> getVmsWithSlaves()
+	{
+		return slaveIndex.values();
+	}
+
+	private List<ParallelsDesktopVMSlaveComputer> getVmComputers()
+	{
+		List<ParallelsDesktopVMSlaveComputer> result = new ArrayList<ParallelsDesktopVMSlaveComputer>();
+		for (ParallelsDesktopVM vm : slaveIndex.values())
+		{
+			ParallelsDesktopVMSlave slave = vm.getSlave();
+			Computer c = slave == null ? null : slave.toComputer();
+			if (c instanceof ParallelsDesktopVMSlaveComputer)
+				result.add((ParallelsDesktopVMSlaveComputer)c);
+		}
+		return result;
+	}
+
+	boolean isDraining()
+	{
+		return draining;
+	}
+
+	// Stops provisioning and releases every VM slave as soon as it is idle.
+	// Idle slaves go to their host teardown pipelines right away, so the hosts
+	// suspend them in parallel; busy ones finish their builds first.
+	void drain()
+	{
+		if (!draining)
+			LOGGER.log(Level.INFO, "Draining cloud '%s'", name);
+		draining = true;
+		for (ParallelsDesktopVMSlaveComputer c : getVmComputers())
+		{
+			if (c.isIdle())
+				c.terminateSlave();
+			else
+				c.setAcceptingTasks(false);
+		}
+	}
+
+	// Drains the cloud for a safe restart, unless an admin drains it already.
+	void drainForRestart()
+	{
+		if (!draining)
+			drainingForRestart = true;
+		drain();
+	}
+
+	// Ends the drain started for a safe restart once the restart is cancelled.
+	void checkRestartCancelled()
+	{
+		if (drainingForRestart && !Jenkins.getInstance().isQuietingDown())
+		{
+			LOGGER.log(Level.INFO, "Safe restart was cancelled");
+			cancelDrain();
+		}
+	}
+
+	void cancelDrain()
+	{
+		drainingForRestart = false;
+		if (!draining)
+			return;
+		LOGGER.log(Level.INFO, "Cancelled draining of cloud '%s'", name);
+		draining = false;
+		for (ParallelsDesktopVMSlaveComputer c : getVmComputers())
+		{
+			if (!c.isTearingDown())
+				c.setAcceptingTasks(true);
+		}
+	}
+
+	JSONObject getDrainProgress()
+	{
+		int busy = 0;
+		int idle = 0;
+		JSONObject tearingDown = new JSONObject();
+		for (ParallelsDesktopVMSlaveComputer c : getVmComputers())
+		{
+			VMTeardownPipeline.Stage stage = c.getTeardownStage();
+			if (stage != null)
+				tearingDown.put(c.getName(), stage.name());
+			else if (c.isIdle())
+				++idle;
+			else
+				++busy;
+		}
+		JSONObject result = new JSONObject();
+		result.put("draining", draining);
+		result.put("busy", busy);
+		result.put("idle", idle);
+		result.put("tearingDown", tearingDown);
+		result.put("readyToRestart", isReadyToRestart());
+		return result;
+	}
+
+	boolean isReadyToRestart()
+	{
+		List<ParallelsDesktopConnectorSlave> slaves;
+		synchronized (connectorSlaves)
+		{
+			slaves = new ArrayList<ParallelsDesktopConnectorSlave>(connectorSlaves.values());
+		}
+		for (ParallelsDesktopConnectorSlave slave : slaves)
+		{
+			Computer c = slave.toComputer();
+			if (c instanceof ParallelsDesktopConnectorSlaveComputer
+					&& !((ParallelsDesktopConnectorSlaveComputer)c).isReadyToRestart())
+				return false;
+		}
+		return true;
+	}
+
+	@RequirePOST
+	public void doDrain(StaplerRequest req, StaplerResponse rsp) throws IOException
+	{
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		drainingForRestart = false;
+		drain();
+		doDrainStatus(req, rsp);
+	}
+
+	@RequirePOST
+	public void doCancelDrain(StaplerRequest req, StaplerResponse rsp) throws IOException
+	{
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		cancelDrain();
+		doDrainStatus(req, rsp);
+	}
+
+	public void doDrainStatus(StaplerRequest req, StaplerResponse rsp) throws IOException
+	{
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		rsp.setContentType("application/json;charset=UTF-8");
+		getDrainProgress().write(rsp.getWriter());
+	}
+
+	void connectorTerminated(ParallelsDesktopConnectorSlave connectorSlave)
+	{
+		synchronized (connectorSlaves)
+		{
+			connectorSlaves.values().remove(connectorSlave);
+		}
+	}
+
+	@Override
+	public boolean canProvision(Label label)
+	{
+		return label != null && !getCandidates(label).isEmpty();
+	}
+
 	public List<ParallelsDesktopVM> getVms()
 	{
 		return vms;
 	}
 
+	public List<ParallelsDesktopHost> getHosts()
+	{
+		if (hosts == null)
+			return Collections.emptyList();
+		return hosts;
+	}
+
+	@DataBoundSetter
+	public void setHosts(List<ParallelsDesktopHost> hosts)
+	{
+		this.hosts = hosts;
+	}
+
+	public int getMinIdleMinutes()
+	{
+		if (minIdleMinutes <= 0)
+			return DEFAULT_MIN_IDLE_MINUTES;
+		return minIdleMinutes;
+	}
+
+	@DataBoundSetter
+	public void setMinIdleMinutes(int minIdleMinutes)
+	{
+		this.minIdleMinutes = minIdleMinutes;
+	}
+
+	public int getMaxIdleMinutes()
+	{
+		if (maxIdleMinutes <= 0)
+			return DEFAULT_MAX_IDLE_MINUTES;
+		return Math.max(maxIdleMinutes, getMinIdleMinutes());
+	}
+
+	@DataBoundSetter
+	public void setMaxIdleMinutes(int maxIdleMinutes)
+	{
+		this.maxIdleMinutes = maxIdleMinutes;
+	}
+
+	public void doIdleTimeouts(StaplerRequest req, StaplerResponse rsp) throws IOException
+	{
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		JSONArray result = new JSONArray();
+		for (ParallelsDesktopIdleTimeouts.Decision d : ParallelsDesktopIdleTimeouts.get().getRecentDecisions())
+		{
+			JSONObject o = new JSONObject();
+			o.put("time", d.getTime());
+			o.put("computer", d.getComputer());
+			o.put("expectedWait", d.getExpectedWait());
+			o.put("timeout", d.getTimeout());
+			result.add(o);
+		}
+		rsp.setContentType("application/json;charset=UTF-8");
+		result.write(rsp.getWriter());
+	}
+
+	public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException
+	{
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		rsp.setContentType("application/json;charset=UTF-8");
+		ParallelsDesktopMetrics.get().toJSON().write(rsp.getWriter());
+	}
+
+	public List<ParallelsDesktopWarmPool> getWarmPools()
+	{
+		if (warmPools == null)
+			return Collections.emptyList();
+		return warmPools;
+	}
+
+	@DataBoundSetter
+	public void setWarmPools(List<ParallelsDesktopWarmPool> warmPools)
+	{
+		this.warmPools = warmPools;
+	}
+
 	public ComputerLauncher getPdLauncher()
 	{
 		return pdLauncher;
@@ -167,6 +885,66 @@ public final class ParallelsDesktopCloud extends Cloud
 		return useConnectorAsBuilder;
 	}
 
+	public int getMaxParallelStarts()
+	{
+		if (maxParallelStarts <= 0)
+			return DEFAULT_MAX_PARALLEL_STARTS;
+		return maxParallelStarts;
+	}
+
+	@DataBoundSetter
+	public void setMaxParallelStarts(int maxParallelStarts)
+	{
+		this.maxParallelStarts = maxParallelStarts;
+	}
+
+	public double getCpuOvercommitRatio()
+	{
+		if (cpuOvercommitRatio <= 0)
+			return DEFAULT_OVERCOMMIT_RATIO;
+		return cpuOvercommitRatio;
+	}
+
+	@DataBoundSetter
+	public void setCpuOvercommitRatio(double cpuOvercommitRatio)
+	{
+		this.cpuOvercommitRatio = cpuOvercommitRatio;
+	}
+
+	public double getRamOvercommitRatio()
+	{
+		if (ramOvercommitRatio <= 0)
+			return DEFAULT_OVERCOMMIT_RATIO;
+		return ramOvercommitRatio;
+	}
+
+	@DataBoundSetter
+	public void setRamOvercommitRatio(double ramOvercommitRatio)
+	{
+		this.ramOvercommitRatio = ramOvercommitRatio;
+	}
+
+	void checkHostHealth()
+	{
+		List<ParallelsDesktopConnectorSlave> slaves;
+		synchronized (connectorSlaves)
+		{
+			slaves = new ArrayList<ParallelsDesktopConnectorSlave>(connectorSlaves.values());
+		}
+		for (ParallelsDesktopConnectorSlave slave : slaves)
+		{
+			Computer c = slave.toComputer();
+			if (c instanceof ParallelsDesktopConnectorSlaveComputer)
+				((ParallelsDesktopConnectorSlaveComputer)c).checkHealth();
+		}
+	}
+
+	void probeHosts()
+	{
+		for (ParallelsDesktopConnectorSlaveComputer connector : getOnlineConnectors())
+			connector.probeHostLoad();
+	}
+
 	@Extension
 	public static final class DescriptorImpl extends Descriptor<Cloud>
 	{
@@ -175,5 +953,23 @@ public final class ParallelsDesktopCloud extends Cloud
 		{
 			return "Parallels Desktop Cloud";
 		}
+
+		// Connector slaves and leases are keyed by host name, so every
+		// additional host needs a distinct one.
+		@Override
+		public Cloud newInstance(StaplerRequest req, JSONObject formData) throws FormException
+		{
+			ParallelsDesktopCloud cloud = (ParallelsDesktopCloud)super.newInstance(req, formData);
+			Set<String> names = new HashSet<String>();
+			for (ParallelsDesktopHost host : cloud.getHosts())
+			{
+				String hostName = Util.fixEmptyAndTrim(host.getName());
+				if (hostName == null)
+					throw new FormException("Host name is required", "hosts");
+				if (!names.add(hostName))
+					throw new FormException("Duplicate host name '" + hostName + "'", "hosts");
+			}
+			return cloud;
+		}
 	}
 }
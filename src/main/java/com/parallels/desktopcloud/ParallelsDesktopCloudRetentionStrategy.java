@@ -36,7 +36,6 @@ public class ParallelsDesktopCloudRetentionStrategy extends RetentionStrategy<Pa
 {
 	private static final ParallelsLogger LOGGER = ParallelsLogger.getLogger("PDCloudRetentionStrategy");
 	private transient ReentrantLock checkLock;
-	private static final long IDLE_TIMEOUT = 2 * 60 * 1000; // 2 minutes
 
 	@DataBoundConstructor
 	public ParallelsDesktopCloudRetentionStrategy()
@@ -52,20 +51,24 @@ public class ParallelsDesktopCloudRetentionStrategy extends RetentionStrategy<Pa
 			return 1;
 		try
 		{
+			if (c.isTearingDown())
+				return 1;
 			final long idleMillis = System.currentTimeMillis() - c.getIdleStartMilliseconds();
-			LOGGER.log(Level.SEVERE, "Check VM computer %s: idle=%b time=%d", c.getName(), c.isIdle(), idleMillis);
-			if (idleMillis > IDLE_TIMEOUT)
+			LOGGER.log(Level.FINEST, "Check VM computer %s: idle=%b time=%d", c.getName(), c.isIdle(), idleMillis);
+			ParallelsDesktopVMSlave node = c.getNode();
+			ParallelsDesktopCloud owner = node == null ? null : node.getCloud();
+			if (owner != null && owner.isDraining() && c.isIdle())
 			{
-				try
-				{
-					LOGGER.log(Level.SEVERE, "Disconnecting computer...");
-					c.disconnect(null).get();
-					c.getNode().terminate();
-				}
-				catch (Exception e)
-				{
-					LOGGER.log(Level.SEVERE, "Error: %s", e);
-				}
+				c.terminateSlave();
+				return 1;
+			}
+			final long idleTimeout = getIdleTimeout(c);
+			if (idleMillis > idleTimeout && !isNeededForWarmPool(c))
+			{
+				ParallelsDesktopVMSlave slave = c.getNode();
+				if (slave != null)
+					ParallelsDesktopIdleTimeouts.get().recordDecision(c.getName(), slave.getVm().getLabelSet(), idleTimeout);
+				c.terminateSlave();
 			}
 			return 1;
 		}
@@ -75,10 +78,27 @@ public class ParallelsDesktopCloudRetentionStrategy extends RetentionStrategy<Pa
 		}
 	}
 
+	private static long getIdleTimeout(ParallelsDesktopVMSlaveComputer c)
+	{
+		ParallelsDesktopVMSlave slave = c.getNode();
+		ParallelsDesktopCloud cloud = slave == null ? null : slave.getCloud();
+		if (cloud == null)
+			return ParallelsDesktopIdleTimeouts.DEFAULT_IDLE_TIMEOUT;
+		return ParallelsDesktopIdleTimeouts.get().getIdleTimeout(slave.getVm().getLabelSet(),
+				cloud.getMinIdleMinutes() * 60 * 1000L, cloud.getMaxIdleMinutes() * 60 * 1000L);
+	}
+
+	private static boolean isNeededForWarmPool(ParallelsDesktopVMSlaveComputer c)
+	{
+		ParallelsDesktopVMSlave slave = c.getNode();
+		ParallelsDesktopCloud cloud = slave == null ? null : slave.getCloud();
+		return cloud != null && c.isOnline() && cloud.isNeededForWarmPool(slave.getVm());
+	}
+
 	@Override
 	public void start(ParallelsDesktopVMSlaveComputer c)
 	{
-		LOGGER.log(Level.SEVERE, "Starting VM computer %s", c.getName());
+		LOGGER.log(Level.FINE, "Starting VM computer %s", c.getName());
 		c.connect(false);
 	}
 
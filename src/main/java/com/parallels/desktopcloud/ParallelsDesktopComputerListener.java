@@ -0,0 +1,53 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+
+
+// Records how long VM slaves take to come online after they are created.
+@Extension
+public class ParallelsDesktopComputerListener extends ComputerListener
+{
+	@Override
+	public void onOnline(Computer c, TaskListener listener)
+	{
+		if (!(c instanceof ParallelsDesktopVMSlaveComputer))
+			return;
+		ParallelsDesktopVMSlave slave = ((ParallelsDesktopVMSlaveComputer)c).getNode();
+		// Neither a reconnect nor a slave taken over after a restart is a new
+		// provisioning.
+		if (slave == null || slave.isReattached() || !slave.claimFirstConnect())
+			return;
+		ParallelsDesktopMetrics metrics = ParallelsDesktopMetrics.get();
+		metrics.record(ParallelsDesktopMetrics.PROVISION_AGENT_CONNECT, slave.getCreationTime());
+		long provisionStart = slave.getVm().getProvisionStartTime();
+		if (provisionStart > 0)
+			metrics.record(ParallelsDesktopMetrics.PROVISION_ONLINE, provisionStart);
+	}
+}
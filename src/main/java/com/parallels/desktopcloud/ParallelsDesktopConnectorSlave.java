@@ -84,7 +84,7 @@ public class ParallelsDesktopConnectorSlave extends AbstractCloudSlave implement
 	@Override
 	protected void _terminate(TaskListener tl) throws IOException, InterruptedException
 	{
-		owner.connectorTerminated();
+		owner.connectorTerminated(this);
 	}
 	
 	@Override
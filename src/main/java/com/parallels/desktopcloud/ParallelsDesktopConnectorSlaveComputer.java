@@ -30,126 +30,142 @@ import hudson.remoting.Channel;
 import hudson.security.Permission;
 import hudson.slaves.AbstractCloudComputer;
 import hudson.slaves.OfflineCause;
-import jenkins.model.Jenkins;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.lang.management.ManagementFactory;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import javax.management.JMException;
 import jenkins.security.MasterToSlaveCallable;
-import net.sf.json.JSONArray;
-import net.sf.json.JSONObject;
-import net.sf.json.JSONSerializer;
-import org.apache.commons.validator.routines.InetAddressValidator;
 
 
 public class ParallelsDesktopConnectorSlaveComputer extends AbstractCloudComputer<ParallelsDesktopConnectorSlave>
 {
 	private static final ParallelsLogger LOGGER = ParallelsLogger.getLogger("PDConnectorSlaveComputer");
-	private int numSlavesToStop = 0;
-	private VMResources hostResources;
+	private final Object ledgerLock = new Object();
+	private volatile VMResourceLedger resourceLedger;
+	private Semaphore startSemaphore;
+	private final Map<String, ParallelsDesktopVM> claimedVms = new HashMap<String, ParallelsDesktopVM>();
+	// Guards prlctl and prlctlChannel. Jenkins locks the Computer itself
+	// while it updates nodes, so remote calls must not be made under it.
+	private final Object prlctlLock = new Object();
+	private PrlctlService prlctl;
+	private Channel prlctlChannel;
+	// Replaces prlctl and the resources of every host when set, e.g. with
+	// SimulatedPrlctl in ProvisioningLoadTest.
+	static volatile PrlctlFactory prlctlFactory;
+	private static final long INVENTORY_TTL = 5 * 1000;
+	private static final long VM_LIST_TTL = 1000;
 
-	public ParallelsDesktopConnectorSlaveComputer(ParallelsDesktopConnectorSlave slave)
+	private final VMInventoryCache vmInfoCache = new VMInventoryCache(INVENTORY_TTL)
 	{
-		super(slave);
-	}
+		@Override
+		protected List<VMInfo> load() throws Exception
+		{
+			return listVMs("list", "-i", "-a", "--json");
+		}
+	};
 
-	private String getVmIPAddress(String vmId) throws Exception
+	private final VMInventoryCache vmListCache = new VMInventoryCache(VM_LIST_TTL)
 	{
-		int TIMEOUT = 180;
-		InetAddressValidator validator = InetAddressValidator.getInstance();
-		for (int i = 0; i < TIMEOUT; ++i)
+		@Override
+		protected List<VMInfo> load() throws Exception
 		{
-			RunVmCallable command = new RunVmCallable("list", "-f", "--json", vmId);
-			String callResult = forceGetChannel().call(command);
-			LOGGER.log(Level.SEVERE, " - (%d/%d) calling for IP. Result: %s", i, TIMEOUT, callResult);
-			JSONArray vms = (JSONArray)JSONSerializer.toJSON(callResult);
-			JSONObject vmInfo = vms.getJSONObject(0);
-			String ip = vmInfo.getString("ip_configured");
-			if (validator.isValidInet4Address(ip))
-				return ip;
-			Thread.sleep(1000);
+			return listVMs("list", "-f", "-a", "--json");
 		}
-		throw new Exception("Failed to get IP for VM '" + vmId + "'");
+	};
+	private final VMIPWatcher ipWatcher = new VMIPWatcher(vmListCache);
+	private VMTeardownPipeline teardownPipeline;
+	private ConnectorHealth health;
+	private static final long CONNECT_TIMEOUT = 60 * 1000;
+	private static final long PING_TIMEOUT = 10 * 1000;
+
+	public ParallelsDesktopConnectorSlaveComputer(ParallelsDesktopConnectorSlave slave)
+	{
+		super(slave);
 	}
 
-	private JSONObject getVMInfo(String vmId) throws Exception
+	static VMInfo findVM(List<VMInfo> vms, String vmId)
 	{
-		RunVmCallable command = new RunVmCallable("list", "-i", "--json");
-		String callResult = forceGetChannel().call(command);
-		JSONArray vms = (JSONArray)JSONSerializer.toJSON(callResult);
-		for (int i = 0; i < vms.size(); i++)
+		for (VMInfo vmInfo : vms)
 		{
-			JSONObject vmInfo = vms.getJSONObject(i);
-			if (vmId.equals(vmInfo.getString("ID")) || vmId.equals(vmInfo.getString("Name")))
+			if (vmInfo.matches(vmId))
 				return vmInfo;
 		}
 		return null;
 	}
 
-	private long memSizeStringToLong(String memSize)
+	private VMInfo getVMInfo(String vmId) throws Exception
 	{
-		// XXX It is expected that memSize ends with "Mb"
-		return Long.parseLong(memSize.substring(0, memSize.length() - 2)) * (1 << 20);
+		return findVM(vmInfoCache.get(), vmId);
 	}
 
-	private static class VMResources implements Serializable
+	private List<VMInfo> listVMs(String... params) throws Exception
 	{
-		private static final long serialVersionUID = 1L;
-		public int cpus;
-		public long ram; // in bytes
-		private static final long mb = 1 << 20;
-		public VMResources(int cpus, long ram)
-		{
-			this.cpus = cpus;
-			this.ram = ram;
-		}
-		public void append(VMResources newResources)
+		return getPrlctl().list(params);
+	}
+
+	private void invalidateInventory()
+	{
+		vmInfoCache.invalidate();
+		vmListCache.invalidate();
+	}
+
+	private VMResources parseVMResources(VMInfo vmInfo)
+	{
+		return VMResources.fromVMInfo(vmInfo);
+	}
+
+	// Only a stopped VM can be reconfigured, so the profile of a suspended one
+	// doesn't count until it is stopped once.
+	private static boolean canApplyProfile(ParallelsDesktopVM vm, VMInfo vmInfo)
+	{
+		return vm.hasResourceProfile() && "stopped".equals(vmInfo.getState());
+	}
+
+	// Resources the VM will take once started, with its profile applied. The
+	// CPU count also sizes the slave of a VM with "auto" executors.
+	private VMResources parseVMResources(ParallelsDesktopVM vm, VMInfo vmInfo)
+	{
+		VMResources resources = parseVMResources(vmInfo);
+		if (canApplyProfile(vm, vmInfo))
 		{
-			cpus += newResources.cpus;
-			ram += newResources.ram;
+			if (vm.getCpus() > 0)
+				resources.cpus = vm.getCpus();
+			if (vm.getMemSizeMb() > 0)
+				resources.ram += ((long)vm.getMemSizeMb() << 20) - Math.max(vmInfo.getMemSize(), 0);
 		}
-		public static boolean check(VMResources host, VMResources used, VMResources vm)
+		if (resources.cpus > 0)
+			vm.setKnownCpus(resources.cpus);
+		return resources;
+	}
+
+	private void applyResourceProfile(ParallelsDesktopVM vm, VMInfo vmInfo) throws Exception
+	{
+		if (!canApplyProfile(vm, vmInfo))
+			return;
+		List<String> options = new ArrayList<String>();
+		if (vm.getCpus() > 0 && vm.getCpus() != vmInfo.getCpus())
 		{
-			if ((vm.cpus + used.cpus) > host.cpus)
-			{
-				LOGGER.log(Level.SEVERE, "Exceeding CPU limit: vm=%d used=%d host=%d",
-						vm.cpus, used.cpus, host.cpus);
-				return false;
-			}
-			if ((vm.ram + used.ram) > host.ram)
-			{
-				LOGGER.log(Level.SEVERE, "Exceeding RAM limit (Mb): vm=%d used=%d host=%d",
-						vm.ram / mb, used.ram / mb, host.ram / mb);
-				return false;
-			}
-			return true;
+			options.add("--cpus");
+			options.add(Integer.toString(vm.getCpus()));
 		}
-		public String toLogString()
+		if (vm.getMemSizeMb() > 0 && ((long)vm.getMemSizeMb() << 20) != vmInfo.getMemSize())
 		{
-			return String.format("CPU=%d RAM=%d", cpus, ram);
+			options.add("--memsize");
+			options.add(Integer.toString(vm.getMemSizeMb()));
 		}
-	}
-
-	private VMResources parseVMResources(JSONObject vmInfo)
-	{
-		JSONObject vmHw = vmInfo.getJSONObject("Hardware");
-		JSONObject vmCpuInfo = vmHw.getJSONObject("cpu");
-		int cpus = vmCpuInfo.getInt("cpus");
-		JSONObject vmMemInfo = vmHw.getJSONObject("memory");
-		long ram = memSizeStringToLong(vmMemInfo.getString("size"));
-		JSONObject vmVideoInfo = vmHw.getJSONObject("video");
-		ram += memSizeStringToLong(vmVideoInfo.getString("size"));
-		ram += 500 * (1 << 20); // +500Mb for each VM for virtualization overhead
-		return new VMResources(cpus, ram);
+		if (options.isEmpty())
+			return;
+		LOGGER.logVM(vm.getVmid(), Level.INFO, "Reconfiguring VM: %s", options);
+		getPrlctl().set(vm.getVmid(), options.toArray(new String[options.size()]));
 	}
 
 	private static VMResources getHostResources(Channel ch) throws Exception
@@ -168,7 +184,7 @@ public class ParallelsDesktopConnectorSlaveComputer extends AbstractCloudCompute
 					}
 					catch (JMException e)
 					{
-						LOGGER.log(Level.SEVERE, "Failed to get host RAM size: %s", e);
+						LOGGER.log(Level.WARNING, "Failed to get host RAM size: %s", e);
 						return Long.MAX_VALUE;
 					}
 				}
@@ -183,47 +199,114 @@ public class ParallelsDesktopConnectorSlaveComputer extends AbstractCloudCompute
 			});
 	}
 
-	private boolean checkResourceLimitsForVm(String vmId)
+	private static HostLoad getHostLoad(Channel ch) throws Exception
 	{
-		try
-		{
-			if (hostResources == null)
-			{
-				hostResources = getHostResources(forceGetChannel());
-				LOGGER.log(Level.SEVERE, "Host '%s' resources: %s", getName(), hostResources.toLogString());
-			}
-
-			VMResources vmResources = null;
-			VMResources usedResources = new VMResources(0, 1 << 30); // +1Gb for host OS and apps
-			RunVmCallable command = new RunVmCallable("list", "-i", "-a", "--json");
-			String callResult = forceGetChannel().call(command);
-			JSONArray vms = (JSONArray)JSONSerializer.toJSON(callResult);
-			for (int i = 0; i < vms.size(); i++)
+		return ch.call(new MasterToSlaveCallable<HostLoad, Exception>()
 			{
-				JSONObject vmInfo = vms.getJSONObject(i);
-				String vmStatus = vmInfo.getString("State");
-				if (vmStatus.equals("stopped") || vmStatus.equals("suspended"))
+				private long getLong(MBeanServer server, ObjectName os, String name)
 				{
-					if (vmInfo.getString("Name").equals(vmId) || vmInfo.getString("ID").equals(vmId))
-						vmResources = parseVMResources(vmInfo);
+					try
+					{
+						return (Long)server.getAttribute(os, name);
+					}
+					catch (JMException e)
+					{
+						return -1;
+					}
 				}
-				else if (!vmStatus.equals("invalid"))
+
+				@Override
+				public HostLoad call() throws Exception
 				{
-					LOGGER.log(Level.FINE , "Accounting VM '%s'", vmInfo.getString("Name"));
-					usedResources.append(parseVMResources(vmInfo));
+					MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+					ObjectName os = new ObjectName("java.lang", "type", "OperatingSystem");
+					return new HostLoad(getLong(server, os, "FreePhysicalMemorySize"),
+							getLong(server, os, "TotalSwapSpaceSize"),
+							getLong(server, os, "FreeSwapSpaceSize"),
+							ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage());
 				}
+			});
+	}
+
+	void probeHostLoad()
+	{
+		Channel channel = getChannel();
+		ParallelsDesktopConnectorSlave slave = getNode();
+		// The load of the machine running a replaced host says nothing about it.
+		if (channel == null || slave == null || prlctlFactory != null)
+			return;
+		try
+		{
+			ParallelsDesktopCloud owner = slave.getOwner();
+			VMResourceLedger ledger = getResourceLedger();
+			ledger.setOvercommit(owner.getCpuOvercommitRatio(), owner.getRamOvercommitRatio());
+			ledger.updateLoad(getHostLoad(channel));
+		}
+		catch (Exception ex)
+		{
+			LOGGER.log(Level.WARNING, "Error: %s\nFailed to probe host '%s'", ex, getName());
+		}
+	}
+
+	// The host resources are queried outside of ledgerLock, like the prlctl
+	// server is installed outside of prlctlLock.
+	private VMResourceLedger getResourceLedger() throws Exception
+	{
+		synchronized (ledgerLock)
+		{
+			if (resourceLedger != null)
+				return resourceLedger;
+		}
+		PrlctlFactory factory = prlctlFactory;
+		VMResources hostResources = factory != null
+				? factory.getHostResources(getName()) : getHostResources(forceGetChannel());
+		synchronized (ledgerLock)
+		{
+			if (resourceLedger == null)
+			{
+				LOGGER.log(Level.INFO, "Host '%s' resources: %s", getName(), hostResources.toLogString());
+				VMResourceLedger ledger = new VMResourceLedger(hostResources);
+				ParallelsDesktopCloud owner = getNode().getOwner();
+				ledger.setOvercommit(owner.getCpuOvercommitRatio(), owner.getRamOvercommitRatio());
+				resourceLedger = ledger;
 			}
-			if (vmResources == null)
-				// This means that at this point VM of interest is already in running
-				// state, somebody has started it. So there's no meaning to check something.
-				return true;
-			if (!VMResources.check(hostResources, usedResources, vmResources))
-				return false;
-			return true;
+			return resourceLedger;
+		}
+	}
+
+	private void reconcile(VMResourceLedger ledger) throws Exception
+	{
+		VMInventoryCache.Snapshot snapshot = vmInfoCache.getSnapshot();
+		ledger.reconcile(snapshot.vms, snapshot.loadTime);
+	}
+
+	// Updates the CPU count of the VM from the last inventory loaded from the
+	// host, without asking the host; false if that inventory doesn't have the
+	// VM or nothing was loaded yet.
+	boolean peekKnownCpus(ParallelsDesktopVM vm)
+	{
+		VMInventoryCache.Snapshot snapshot = vmInfoCache.peek();
+		if (snapshot == null)
+			return false;
+		VMInfo vmInfo = findVM(snapshot.vms, vm.getVmid());
+		if (vmInfo == null)
+			return false;
+		parseVMResources(vm, vmInfo);
+		return true;
+	}
+
+	private boolean reserveResourcesForVm(ParallelsDesktopVM vm, VMInfo vmInfo)
+	{
+		try
+		{
+			VMResourceLedger ledger = getResourceLedger();
+			if (ledger.isReconcileDue())
+				reconcile(ledger);
+			return ledger.reserve(vm.getVmid(), parseVMResources(vm, vmInfo));
 		}
 		catch (Exception ex)
 		{
-			LOGGER.log(Level.SEVERE, "Error: %s\nFailed to check resource limits", ex);
+			LOGGER.log(Level.WARNING, "Error: %s\nFailed to check resource limits", ex);
 		}
 		return false;
 	}
@@ -231,16 +314,20 @@ public class ParallelsDesktopConnectorSlaveComputer extends AbstractCloudCompute
 	public Node createSlaveOnVM(ParallelsDesktopVM vm) throws Exception
 	{
 		String vmId = vm.getVmid();
-		LOGGER.log(Level.SEVERE, "Waiting for IP...");
+		LOGGER.logVM(vmId, Level.FINE, "Waiting for IP...");
 		String ip;
+		long ipWaitStart = System.currentTimeMillis();
+		Future<String> ipFuture = ipWatcher.watch(vmId);
 		try
 		{
-			ip = getVmIPAddress(vmId);
-			LOGGER.log(Level.SEVERE, "Got IP address for VM %s: %s", vmId, ip);
+			ip = ipFuture.get(VMIPWatcher.TIMEOUT + 10 * 1000, TimeUnit.MILLISECONDS);
 			vm.setLauncherIP(ip);
+			ParallelsDesktopMetrics.get().record(ParallelsDesktopMetrics.PROVISION_IP_WAIT, ipWaitStart);
 		}
 		catch (Exception e)
 		{
+			ParallelsDesktopMetrics.get().recordError(ParallelsDesktopMetrics.PROVISION_IP_WAIT);
+			ipWatcher.cancel(vmId);
 			if (vm.getLauncherIP() == null)
 				throw e;
 		}
@@ -248,28 +335,184 @@ public class ParallelsDesktopConnectorSlaveComputer extends AbstractCloudCompute
 		String slaveName = vm.getSlaveName();
 		LOGGER.log(Level.FINE, "Starting slave '%s'", slaveName);
 		Node n = new ParallelsDesktopVMSlave(vm, this);
-		LOGGER.log(Level.SEVERE, "Slave %s provisioned.", slaveName);
+		vm.getLifecycle().transition(VMLifecycle.State.WaitingForIp, VMLifecycle.State.Online);
+		ParallelsDesktopConnectorSlave connectorSlave = getNode();
+		if (connectorSlave != null)
+		{
+			ParallelsDesktopCloud owner = connectorSlave.getOwner();
+			VMLeaseStore.get().put(new VMLeaseStore.Lease(owner.name, owner.getHostKey(connectorSlave), vm));
+		}
+		LOGGER.logVM(vmId, Level.INFO, "Slave %s provisioned.", slaveName);
 		return n;
 	}
 
+	// Takes over a VM leased before a restart. A VM which is still running gets
+	// its slave back at once, with the address from the lease and without being
+	// started; one the inventory shows not running is released. Returns null
+	// if the VM was released. Throws if the host couldn't be asked, leaving
+	// the VM reserved for the caller to try again later.
+	Node reattachVM(ParallelsDesktopVM vm, String ip) throws Exception
+	{
+		String vmId = vm.getVmid();
+		VMLifecycle lifecycle = vm.getLifecycle();
+		if (!claimVm(vm))
+		{
+			lifecycle.transition(VMLifecycle.State.Reserved, VMLifecycle.State.Failed);
+			return null;
+		}
+		try
+		{
+			VMInfo vmInfo = getVMInfo(vmId);
+			if (vmInfo != null && "running".equals(vmInfo.getState()))
+			{
+				getResourceLedger().track(vmId, parseVMResources(vm, vmInfo));
+				if (ip != null)
+					vm.setLauncherIP(ip);
+				Node n = new ParallelsDesktopVMSlave(vm, this, true);
+				lifecycle.transition(VMLifecycle.State.Reserved, VMLifecycle.State.Starting);
+				lifecycle.transition(VMLifecycle.State.Starting, VMLifecycle.State.WaitingForIp);
+				lifecycle.transition(VMLifecycle.State.WaitingForIp, VMLifecycle.State.Online);
+				LOGGER.logVM(vmId, Level.INFO, "Slave %s re-attached.", vm.getSlaveName());
+				return n;
+			}
+		}
+		catch (Exception ex)
+		{
+			releaseVm(vmId);
+			throw ex;
+		}
+		LOGGER.logVM(vmId, Level.INFO, "VM '%s' isn't running anymore", vmId);
+		// A clone which is left is deleted, any other VM is just free again.
+		if (lifecycle.beginRelease())
+			lifecycle.finishRelease(vm.isClone() ? stopVM(vm) : true);
+		releaseVm(vmId);
+		return null;
+	}
+
+	private synchronized Semaphore getStartSemaphore()
+	{
+		if (startSemaphore == null)
+			startSemaphore = new Semaphore(getNode().getOwner().getMaxParallelStarts(), true);
+		return startSemaphore;
+	}
+
+	private boolean claimVm(ParallelsDesktopVM vm)
+	{
+		synchronized (claimedVms)
+		{
+			if (claimedVms.containsKey(vm.getVmid()))
+				return false;
+			claimedVms.put(vm.getVmid(), vm);
+			return true;
+		}
+	}
+
+	private void releaseVm(String vmId)
+	{
+		synchronized (claimedVms)
+		{
+			claimedVms.remove(vmId);
+		}
+	}
+
+	Double getPlacementScore(ParallelsDesktopVM vm)
+	{
+		String vmId = vm.getVmid();
+		synchronized (claimedVms)
+		{
+			if (claimedVms.containsKey(vmId))
+				return null;
+		}
+		try
+		{
+			VMInfo vmInfo = getVMInfo(vmId);
+			if (vmInfo == null)
+				return null;
+			if ("running".equals(vmInfo.getState()))
+				return 0.0;
+			VMResourceLedger ledger = getResourceLedger();
+			if (ledger.isReconcileDue())
+				reconcile(ledger);
+			return ledger.getFitScore(parseVMResources(vm, vmInfo));
+		}
+		catch (Exception ex)
+		{
+			LOGGER.logVM(vmId, Level.WARNING, "Error: %s\nFailed to check VM '%s' on host '%s'", ex, vmId, getName());
+		}
+		return null;
+	}
+
+	// Returns null if the VM couldn't be started on this host, so the caller
+	// may try another one.
+	public Node provisionVM(ParallelsDesktopVM vm) throws Exception
+	{
+		String vmId = vm.getVmid();
+		VMLifecycle lifecycle = vm.getLifecycle();
+		if (!claimVm(vm))
+			return null;
+		if (!lifecycle.transition(VMLifecycle.State.Reserved, VMLifecycle.State.Starting))
+		{
+			releaseVm(vmId);
+			return null;
+		}
+		boolean started;
+		Semaphore semaphore = getStartSemaphore();
+		semaphore.acquire();
+		long startTime = System.currentTimeMillis();
+		try
+		{
+			started = startVM(vm);
+		}
+		finally
+		{
+			semaphore.release();
+		}
+		ParallelsDesktopMetrics metrics = ParallelsDesktopMetrics.get();
+		if (started)
+			metrics.record(ParallelsDesktopMetrics.PROVISION_START, startTime);
+		else
+		{
+			metrics.recordError(ParallelsDesktopMetrics.PROVISION_START);
+			lifecycle.transition(VMLifecycle.State.Starting, VMLifecycle.State.Reserved);
+			releaseVm(vmId);
+			return null;
+		}
+		lifecycle.transition(VMLifecycle.State.Starting, VMLifecycle.State.WaitingForIp);
+		try
+		{
+			return createSlaveOnVM(vm);
+		}
+		catch (Exception ex)
+		{
+			LOGGER.logVM(vmId, Level.WARNING, "Error: %s\nFailed to create slave on VM '%s'", ex, vmId);
+			if (lifecycle.beginRelease())
+			{
+				stopVM(vm);
+				lifecycle.finishRelease(false);
+			}
+			releaseVm(vmId);
+			throw ex;
+		}
+	}
+
 	public boolean startVM(ParallelsDesktopVM vm)
 	{
 		String vmId = vm.getVmid();
-		LOGGER.log(Level.SEVERE, "Looking for virtual machine '%s'...", vmId);
+		LOGGER.logVM(vmId, Level.FINE, "Looking for virtual machine '%s'...", vmId);
 		try
 		{
-			JSONObject vmInfo = getVMInfo(vmId);
+			VMInfo vmInfo = getVMInfo(vmId);
 			if (vmInfo == null)
 			{
-				LOGGER.log(Level.SEVERE, "Failed to start virtual machine '%s': no such VM", vmId);
+				LOGGER.logVM(vmId, Level.WARNING, "Failed to start virtual machine '%s': no such VM", vmId);
 				return false;
 			}
 
-			String vmStatus = vmInfo.getString("State");
+			String vmStatus = vmInfo.getState();
 			ParallelsDesktopVM.VMStates state = ParallelsDesktopVM.parseVMState(vmStatus);
 			if (state == null)
 			{
-				LOGGER.log(Level.SEVERE, "Unexpected VM '%s' state: %s", vmId, vmStatus);
+				LOGGER.logVM(vmId, Level.WARNING, "Unexpected VM '%s' state: %s", vmId, vmStatus);
 				state = ParallelsDesktopVM.VMStates.Suspended;
 			}
 			if (vm.getPostBuildBehaviorValue() == ParallelsDesktopVM.PostBuildBehaviors.ReturnPrevState)
@@ -277,136 +520,347 @@ public class ParallelsDesktopConnectorSlaveComputer extends AbstractCloudCompute
 
 			if (state != ParallelsDesktopVM.VMStates.Running)
 			{
-				if (!checkResourceLimitsForVm(vmId))
+				if (!reserveResourcesForVm(vm, vmInfo))
 				{
-					LOGGER.log(Level.SEVERE, "Not enough resources to start VM %s", vmId);
+					LOGGER.logVM(vmId, Level.INFO, "Not enough resources to start VM %s", vmId);
 					return false;
 				}
-				LOGGER.log(Level.SEVERE, "Starting virtual machine '%s'", vmId);
-				RunVmCallable command = new RunVmCallable("start", vmId);
-				forceGetChannel().call(command);
+				LOGGER.logVM(vmId, Level.INFO, "Starting virtual machine '%s'", vmId);
+				boolean started = false;
+				try
+				{
+					applyResourceProfile(vm, vmInfo);
+					getPrlctl().start(vmId);
+					started = true;
+				}
+				finally
+				{
+					invalidateInventory();
+					if (started)
+						resourceLedger.commit(vmId);
+					else
+						resourceLedger.release(vmId);
+				}
 			}
-			if (vm.getPostBuildCommand() != null)
-				++numSlavesToStop;
-			vm.setProvisioned(true);
+			else
+				getResourceLedger().track(vmId, parseVMResources(vm, vmInfo));
 			return true;
 		}
 		catch (Exception ex)
 		{
-			LOGGER.log(Level.SEVERE, "Error: %s\nFailed to start VM '%s'", ex, vmId);
+			LOGGER.logVM(vmId, Level.WARNING, "Error: %s\nFailed to start VM '%s'", ex, vmId);
 		}
 		stopVM(vm);
 		return false;
 	}
 
-	private void stopVM(ParallelsDesktopVM vm)
+	boolean cloneVM(ParallelsDesktopVM template, ParallelsDesktopVM clone)
+	{
+		try
+		{
+			LOGGER.logVM(clone.getVmid(), Level.INFO, "Cloning VM '%s' from template '%s'", clone.getVmid(), template.getVmid());
+			String res;
+			try
+			{
+				res = getPrlctl().cloneLinked(template.getVmid(), clone.getVmid());
+			}
+			finally
+			{
+				invalidateInventory();
+			}
+			LOGGER.logVM(clone.getVmid(), Level.FINE, "Result: %s", res);
+			return true;
+		}
+		catch (Exception ex)
+		{
+			LOGGER.logVM(clone.getVmid(), Level.WARNING, "Error: %s\nFailed to clone VM '%s'", ex, template.getVmid());
+		}
+		return false;
+	}
+
+	private void deleteClone(ParallelsDesktopVM vm)
 	{
+		if (!vm.isCloneSlotHeld())
+			return;
+		try
+		{
+			LOGGER.logVM(vm.getVmid(), Level.INFO, "Deleting clone '%s'", vm.getVmid());
+			String res;
+			try
+			{
+				res = getPrlctl().delete(vm.getVmid());
+			}
+			finally
+			{
+				invalidateInventory();
+			}
+			LOGGER.logVM(vm.getVmid(), Level.FINE, "Result: %s", res);
+		}
+		catch (Exception ex)
+		{
+			LOGGER.logVM(vm.getVmid(), Level.WARNING, "Error: %s", ex);
+		}
 		try
 		{
-			String action = vm.getPostBuildCommand();
+			getResourceLedger().release(vm.getVmid());
+		}
+		catch (Exception ex)
+		{
+			LOGGER.logVM(vm.getVmid(), Level.WARNING, "Error: %s", ex);
+		}
+		vm.releaseCloneSlot();
+		ParallelsLogger.discardEvents(vm.getVmid());
+		ParallelsDesktopConnectorSlave connectorSlave = getNode();
+		if (connectorSlave != null)
+			connectorSlave.getOwner().onCloneDeleted(vm);
+	}
+
+	// Returns false if the post-build action failed.
+	private boolean stopVM(ParallelsDesktopVM vm)
+	{
+		if (vm.isClone())
+		{
+			deleteClone(vm);
+			return true;
+		}
+		try
+		{
+			String[] action = vm.getPostBuildCommand();
 			if (action == null)
 			{
-				LOGGER.log(Level.SEVERE, "Keep running VM %s", vm.getVmid());
-				return;
+				LOGGER.logVM(vm.getVmid(), Level.FINE, "Keep running VM %s", vm.getVmid());
+				return true;
 			}
-			LOGGER.log(Level.SEVERE, "Post build action for '%s': %s", vm.getVmid(), action);
-			RunVmCallable command = new RunVmCallable(action, vm.getVmid());
-			String res = forceGetChannel().call(command);
-			LOGGER.log(Level.SEVERE, "Result: %s", res);
-			if (numSlavesToStop > 0)
-				--numSlavesToStop;
-			vm.setProvisioned(false);
+			LOGGER.logVM(vm.getVmid(), Level.INFO, "Post build action for '%s': %s", vm.getVmid(), Arrays.toString(action));
+			String res;
+			try
+			{
+				res = runAction(getPrlctl(), action, vm.getVmid());
+			}
+			finally
+			{
+				invalidateInventory();
+			}
+			LOGGER.logVM(vm.getVmid(), Level.FINE, "Result: %s", res);
+			if (!"pause".equals(action[0]))
+				getResourceLedger().release(vm.getVmid());
+			return true;
 		}
 		catch (Exception ex)
 		{
-			LOGGER.log(Level.SEVERE, "Error: %s", ex);
+			LOGGER.logVM(vm.getVmid(), Level.WARNING, "Error: %s", ex);
 		}
+		return false;
 	}
 
+	// Runs the post-build action unless another thread is already releasing
+	// the VM.
 	public void postBuildAction(ParallelsDesktopVM vm)
 	{
-		stopVM(vm);
+		VMLifecycle lifecycle = vm.getLifecycle();
+		if (!lifecycle.beginRelease())
+			return;
+		boolean ok = stopVM(vm);
+		VMLeaseStore.get().remove(vm.getSlaveName());
+		releaseVm(vm.getVmid());
+		lifecycle.finishRelease(ok);
 	}
 
+	// Ready once no VM started here still waits for its post-build action.
 	public boolean isReadyToRestart()
 	{
 		if (isOffline())
 			return true;
-		return numSlavesToStop == 0;
+		synchronized (claimedVms)
+		{
+			for (ParallelsDesktopVM vm : claimedVms.values())
+			{
+				if (vm.getLifecycle().isBusy() && (vm.isClone() || vm.getPostBuildCommand() != null))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private static String runAction(PrlctlService prlctl, String[] command, String vmId) throws Exception
+	{
+		String action = command[0];
+		if ("snapshot-switch".equals(action))
+			return prlctl.snapshotSwitch(vmId, Arrays.copyOfRange(command, 1, command.length));
+		if ("suspend".equals(action))
+			return prlctl.suspend(vmId);
+		if ("stop".equals(action))
+			return prlctl.stop(vmId);
+		if ("pause".equals(action))
+			return prlctl.pause(vmId);
+		if ("start".equals(action))
+			return prlctl.start(vmId);
+		throw new IllegalArgumentException("Unknown VM action: " + action);
+	}
+
+	synchronized VMTeardownPipeline getTeardownPipeline()
+	{
+		if (teardownPipeline == null)
+			teardownPipeline = new VMTeardownPipeline(getName());
+		return teardownPipeline;
 	}
 
-	private static final class PrlCtlFailedException extends Exception
+	@Override
+	protected void onRemoved()
 	{
-		private static String formatMessage(int rc, String output)
+		super.onRemoved();
+		synchronized (this)
 		{
-			String msg = String.format("prlctl execution failed with code %d", rc);
-			if (!output.isEmpty())
-				msg += String.format(" , output:\n%s", output);
-			return msg;
+			if (teardownPipeline != null)
+				teardownPipeline.shutdown();
 		}
+	}
+
+	interface PrlctlFactory
+	{
+		PrlctlService create(String hostName) throws Exception;
 
-		private PrlCtlFailedException(int rc, String output)
+		VMResources getHostResources(String hostName) throws Exception;
+	}
+
+	// Connecting and installing the server are remote calls, so they run
+	// outside of prlctlLock; of two threads racing to install a server for
+	// the same channel, the first one to finish wins.
+	PrlctlService getPrlctl() throws Exception
+	{
+		PrlctlFactory factory = prlctlFactory;
+		Channel channel = factory == null ? forceGetChannel() : null;
+		synchronized (prlctlLock)
 		{
-			super(formatMessage(rc, output));
+			if (prlctl != null && prlctlChannel == channel)
+				return prlctl;
+		}
+		PrlctlService service = new TimedPrlctlService(factory != null
+				? factory.create(getName()) : PrlctlServer.install(channel));
+		synchronized (prlctlLock)
+		{
+			if (prlctl == null || prlctlChannel != channel)
+			{
+				prlctl = service;
+				prlctlChannel = channel;
+			}
+			return prlctl;
 		}
 	}
-	
-	public Channel forceGetChannel() throws InterruptedException, ExecutionException
+
+	synchronized ConnectorHealth getHealth()
 	{
+		if (health == null)
+			health = new ConnectorHealth(getName());
+		return health;
+	}
+
+	boolean isHostAvailable()
+	{
+		return getHealth().isAvailable();
+	}
+
+	// Never blocks for longer than CONNECT_TIMEOUT and fails at once while the
+	// host is known to be unavailable; the health check reconnects it.
+	public Channel forceGetChannel() throws Exception
+	{
+		ConnectorHealth h = getHealth();
+		if (!h.isAvailable())
+			throw h.unavailable();
 		Channel channel = getChannel();
+		if (channel != null)
+			return channel;
+		try
+		{
+			connect(false).get(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch (Exception ex)
+		{
+			h.onFailure(ex.toString());
+			throw h.unavailable();
+		}
+		channel = getChannel();
 		if (channel == null)
 		{
-			connect(true).get();
-			channel = getChannel();
+			h.onFailure("not connected");
+			throw h.unavailable();
 		}
 		return channel;
 	}
 
-	private static final class RunVmCallable extends MasterToSlaveCallable<String, Exception>
+	void checkHealth()
 	{
-		private static final String cmd = "/usr/local/bin/prlctl";
-		private final String[] params;
-		
-		public RunVmCallable(String... params)
+		ConnectorHealth h = getHealth();
+		Channel channel = getChannel();
+		if (channel == null)
 		{
-			this.params = params;
-		}
-
-		@Override
-		public String call() throws IOException, PrlCtlFailedException
-		{
-			List<String> cmds = new ArrayList<String>();
-			cmds.add(cmd);
-			cmds.addAll(Arrays.asList(this.params));
-			
-			LOGGER.log(Level.SEVERE, "Running command:");
-			for (String s: cmds)
-				LOGGER.log(Level.SEVERE, " [%s]", s);
-			ProcessBuilder pb = new ProcessBuilder(cmds);
-			pb.redirectErrorStream(true);
-			Process pr = pb.start();
-			BufferedReader in = new BufferedReader(new InputStreamReader(pr.getInputStream()));
-			String line;
-			String result = "";
-			while ((line = in.readLine()) != null) 
-			{
-				result += line;
-			}
-			int rc = 0;
-			try
+			if (isConnecting())
+				return;
+			if (h.isAvailable())
+				h.onFailure("not connected");
+			if (h.claimReconnect())
 			{
-				rc = pr.waitFor();
+				LOGGER.log(Level.INFO, "Reconnecting host '%s'", getName());
+				reconnect(h);
 			}
-			catch (InterruptedException ex)
+			return;
+		}
+		try
+		{
+			channel.callAsync(new PingCallable()).get(PING_TIMEOUT, TimeUnit.MILLISECONDS);
+			if (!h.isAvailable())
+				LOGGER.log(Level.INFO, "Host '%s' is available again", getName());
+			h.onSuccess();
+		}
+		catch (Exception ex)
+		{
+			if (h.isAvailable())
+				LOGGER.log(Level.WARNING, "Host '%s' doesn't respond: %s", getName(), ex);
+			h.onFailure(ex.toString());
+		}
+	}
+
+	// Reports the outcome of the reconnect attempt back to the health, so a
+	// failed one moves the next attempt out by the following backoff step.
+	private void reconnect(final ConnectorHealth h)
+	{
+		final Future<?> connecting = connect(false);
+		Computer.threadPoolForRemoting.submit(new Runnable()
+		{
+			@Override
+			public void run()
 			{
-				LOGGER.log(Level.SEVERE, "Error: %s", ex.toString());
+				try
+				{
+					connecting.get(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+				}
+				catch (Exception ex)
+				{
+					h.onFailure(ex.toString());
+					return;
+				}
+				if (getChannel() == null)
+				{
+					h.onFailure("reconnect failed");
+					return;
+				}
+				LOGGER.log(Level.INFO, "Host '%s' is available again", getName());
+				h.onSuccess();
 			}
-			if (rc != 0)
-				throw new PrlCtlFailedException(rc, result);
-			return result;
+		});
+	}
+
+	private static final class PingCallable extends MasterToSlaveCallable<Boolean, RuntimeException>
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Boolean call()
+		{
+			return true;
 		}
 	}
-	
+
 	@Override
 	public boolean hasPermission(Permission permission)
 	{
@@ -420,16 +874,16 @@ public class ParallelsDesktopConnectorSlaveComputer extends AbstractCloudCompute
 	{
 		try
 		{
-			Jenkins jenkins = Jenkins.getInstance();
-			for (ParallelsDesktopVM vm : this.getNode().getOwner().getVms())
+			for (ParallelsDesktopVM vm : this.getNode().getOwner().getVmsWithSlaves())
 			{
-				Node slaveNode = jenkins.getNode(vm.getSlaveName());
-				if (slaveNode == null)
+				ParallelsDesktopVMSlave slaveNode = vm.getSlave();
+				if (slaveNode == null || slaveNode.getConnector() != this)
 				{
 					continue;
 				}
 				Computer slaveComputer = slaveNode.toComputer();
-				slaveComputer.setTemporarilyOffline(temporarilyOffline, cause);
+				if (slaveComputer != null)
+					slaveComputer.setTemporarilyOffline(temporarilyOffline, cause);
 			}
 		}
 		catch (NullPointerException ignore)
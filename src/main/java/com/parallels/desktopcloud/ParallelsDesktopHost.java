@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.slaves.ComputerLauncher;
+import hudson.util.FormValidation;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+
+// Additional Mac host of a ParallelsDesktopCloud. The cloud keeps a connector
+// slave on every host and places each VM on one of them.
+public class ParallelsDesktopHost extends AbstractDescribableImpl<ParallelsDesktopHost>
+{
+	private final String name;
+	private final String labelString;
+	private final String remoteFS;
+	private final ComputerLauncher launcher;
+	private final boolean useAsBuilder;
+
+	@DataBoundConstructor
+	public ParallelsDesktopHost(String name, String labelString, String remoteFS, ComputerLauncher launcher,
+			boolean useAsBuilder)
+	{
+		this.name = name;
+		this.labelString = labelString;
+		this.remoteFS = remoteFS;
+		this.launcher = launcher;
+		this.useAsBuilder = useAsBuilder;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public String getLabelString()
+	{
+		return labelString;
+	}
+
+	public String getRemoteFS()
+	{
+		return remoteFS;
+	}
+
+	public ComputerLauncher getLauncher()
+	{
+		return launcher;
+	}
+
+	public boolean getUseAsBuilder()
+	{
+		return useAsBuilder;
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends Descriptor<ParallelsDesktopHost>
+	{
+		@Override
+		public String getDisplayName()
+		{
+			return "Parallels Desktop host";
+		}
+
+		// Duplicates are only visible to the whole cloud form, see
+		// ParallelsDesktopCloud.DescriptorImpl.newInstance().
+		public FormValidation doCheckName(@QueryParameter String value)
+		{
+			if (Util.fixEmptyAndTrim(value) == null)
+				return FormValidation.error("Host name is required");
+			return FormValidation.ok();
+		}
+	}
+}
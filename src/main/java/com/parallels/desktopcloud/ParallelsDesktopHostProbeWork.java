@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import java.io.IOException;
+import jenkins.model.Jenkins;
+
+
+// Samples the load of all connector hosts for start admission.
+@Extension
+public class ParallelsDesktopHostProbeWork extends AsyncPeriodicWork
+{
+	private static final long RECURRENCE_PERIOD = 15 * 1000;
+
+	public ParallelsDesktopHostProbeWork()
+	{
+		super("Parallels Desktop host probe");
+	}
+
+	@Override
+	public long getRecurrencePeriod()
+	{
+		return RECURRENCE_PERIOD;
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException
+	{
+		for (Cloud cloud : Jenkins.getInstance().clouds)
+		{
+			if (cloud instanceof ParallelsDesktopCloud)
+				((ParallelsDesktopCloud)cloud).probeHosts();
+		}
+	}
+}
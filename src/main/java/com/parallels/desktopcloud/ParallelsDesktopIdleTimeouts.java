@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import hudson.Extension;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.labels.LabelAtom;
+import hudson.model.queue.QueueListener;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+
+
+// Tracks how often queue items arrive for each label and derives from it how
+// long an idle VM slave is worth keeping: long enough to catch the next build
+// expected for its labels, but not longer than the configured maximum.
+@Extension
+public class ParallelsDesktopIdleTimeouts extends QueueListener
+{
+	private static final ParallelsLogger LOGGER = ParallelsLogger.getLogger("PDIdleTimeouts");
+	static final long DEFAULT_IDLE_TIMEOUT = 2 * 60 * 1000; // 2 minutes
+	private static final double ALPHA = 0.3;
+	private static final double KEEP_FACTOR = 1.5;
+	private static final int MAX_DECISIONS = 100;
+
+	private final ConcurrentMap<Label, Arrivals> arrivals = new ConcurrentHashMap<Label, Arrivals>();
+	private final Deque<Decision> decisions = new ArrayDeque<Decision>();
+
+	private static final class Arrivals
+	{
+		private long last;
+		private double meanInterval = -1;
+
+		synchronized void record(long now)
+		{
+			if (last != 0)
+			{
+				long interval = now - last;
+				meanInterval = meanInterval < 0 ? interval : ALPHA * interval + (1 - ALPHA) * meanInterval;
+			}
+			last = now;
+		}
+
+		// Expected interval between arrivals; a label which went quiet for
+		// longer than its mean interval is treated as slowing down.
+		synchronized double getInterval(long now)
+		{
+			if (meanInterval < 0)
+				return -1;
+			return Math.max(meanInterval, now - last);
+		}
+	}
+
+	public static final class Decision
+	{
+		private final long time;
+		private final String computer;
+		private final long expectedWait;
+		private final long timeout;
+
+		private Decision(long time, String computer, long expectedWait, long timeout)
+		{
+			this.time = time;
+			this.computer = computer;
+			this.expectedWait = expectedWait;
+			this.timeout = timeout;
+		}
+
+		public long getTime()
+		{
+			return time;
+		}
+
+		public String getComputer()
+		{
+			return computer;
+		}
+
+		public long getExpectedWait()
+		{
+			return expectedWait;
+		}
+
+		public long getTimeout()
+		{
+			return timeout;
+		}
+	}
+
+	public static ParallelsDesktopIdleTimeouts get()
+	{
+		return QueueListener.all().get(ParallelsDesktopIdleTimeouts.class);
+	}
+
+	@Override
+	public void onEnterWaiting(Queue.WaitingItem wi)
+	{
+		Label label = wi.getAssignedLabel();
+		if (label == null)
+			return;
+		Arrivals a = arrivals.get(label);
+		if (a == null)
+		{
+			arrivals.putIfAbsent(label, new Arrivals());
+			a = arrivals.get(label);
+		}
+		a.record(System.currentTimeMillis());
+	}
+
+	// Expected time until the next queue item one of these labels can serve,
+	// or -1 if nothing is known yet.
+	long getExpectedWait(Set<LabelAtom> vmLabels)
+	{
+		long now = System.currentTimeMillis();
+		double rate = 0;
+		for (Map.Entry<Label, Arrivals> e : arrivals.entrySet())
+		{
+			if (!e.getKey().matches(vmLabels))
+				continue;
+			double interval = e.getValue().getInterval(now);
+			if (interval > 0)
+				rate += 1 / interval;
+		}
+		if (rate == 0)
+			return -1;
+		return (long)(1 / rate);
+	}
+
+	long getIdleTimeout(Set<LabelAtom> vmLabels, long min, long max)
+	{
+		long expectedWait = getExpectedWait(vmLabels);
+		if (expectedWait < 0)
+			return Math.min(Math.max(DEFAULT_IDLE_TIMEOUT, min), max);
+		if (expectedWait > max)
+			return min;
+		return Math.min(Math.max((long)(expectedWait * KEEP_FACTOR), min), max);
+	}
+
+	void recordDecision(String computer, Set<LabelAtom> vmLabels, long timeout)
+	{
+		long expectedWait = getExpectedWait(vmLabels);
+		LOGGER.log(Level.FINE, "Releasing %s after %d ms idle, next build expected in %d ms",
+				computer, timeout, expectedWait);
+		synchronized (decisions)
+		{
+			decisions.addFirst(new Decision(System.currentTimeMillis(), computer, expectedWait, timeout));
+			while (decisions.size() > MAX_DECISIONS)
+				decisions.removeLast();
+		}
+	}
+
+	public List<Decision> getRecentDecisions()
+	{
+		synchronized (decisions)
+		{
+			return new ArrayList<Decision>(decisions);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import net.sf.json.JSONObject;
+
+
+// Latencies of prlctl commands, provisioning phases and teardown. Exposed as
+// the com.parallels.desktopcloud:type=Metrics MBean and as JSON by the cloud.
+public final class ParallelsDesktopMetrics implements DynamicMBean
+{
+	private static final ParallelsLogger LOGGER = ParallelsLogger.getLogger("PDMetrics");
+	private static final ParallelsDesktopMetrics INSTANCE = new ParallelsDesktopMetrics();
+
+	static final String PROVISION_START = "provision.start";
+	static final String PROVISION_IP_WAIT = "provision.ipWait";
+	static final String PROVISION_AGENT_CONNECT = "provision.agentConnect";
+	static final String PROVISION_ONLINE = "provision.online";
+	static final String TEARDOWN = "teardown";
+
+	private static final String[] FIELDS = { "count", "errors", "mean", "p50", "p95", "p99", "max" };
+
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	private ParallelsDesktopMetrics()
+	{
+	}
+
+	public static ParallelsDesktopMetrics get()
+	{
+		return INSTANCE;
+	}
+
+	@Initializer(after = InitMilestone.PLUGINS_STARTED)
+	public static void register()
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("com.parallels.desktopcloud", "type", "Metrics");
+			if (!server.isRegistered(name))
+				server.registerMBean(INSTANCE, name);
+		}
+		catch (JMException e)
+		{
+			LOGGER.log(Level.WARNING, "Failed to register metrics MBean: %s", e);
+		}
+	}
+
+	LatencyHistogram histogram(String name)
+	{
+		LatencyHistogram h = histograms.get(name);
+		if (h == null)
+		{
+			histograms.putIfAbsent(name, new LatencyHistogram());
+			h = histograms.get(name);
+		}
+		return h;
+	}
+
+	void record(String name, long startMillis)
+	{
+		histogram(name).record(System.currentTimeMillis() - startMillis);
+	}
+
+	void recordError(String name)
+	{
+		histogram(name).recordError();
+	}
+
+	public JSONObject toJSON()
+	{
+		JSONObject result = new JSONObject();
+		for (Map.Entry<String, LatencyHistogram> e : new TreeMap<String, LatencyHistogram>(histograms).entrySet())
+			result.put(e.getKey(), e.getValue().toJSON());
+		return result;
+	}
+
+	private static long getField(LatencyHistogram h, String field)
+	{
+		if ("count".equals(field))
+			return h.getCount();
+		if ("errors".equals(field))
+			return h.getErrors();
+		if ("mean".equals(field))
+			return h.getMean();
+		if ("p50".equals(field))
+			return h.getPercentile(0.5);
+		if ("p95".equals(field))
+			return h.getPercentile(0.95);
+		if ("p99".equals(field))
+			return h.getPercentile(0.99);
+		return h.getMax();
+	}
+
+	// Attributes are named "<histogram>.<field>", e.g. "prlctl.start.p95".
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException
+	{
+		int dot = attribute.lastIndexOf('.');
+		LatencyHistogram h = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+		if (h == null)
+			throw new AttributeNotFoundException(attribute);
+		return getField(h, attribute.substring(dot + 1));
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException(attribute.getName());
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes)
+	{
+		AttributeList result = new AttributeList();
+		for (String attribute : attributes)
+		{
+			try
+			{
+				result.add(new Attribute(attribute, getAttribute(attribute)));
+			}
+			catch (AttributeNotFoundException ignore)
+			{
+				//noop
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+	{
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo()
+	{
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String name : new TreeMap<String, LatencyHistogram>(histograms).keySet())
+		{
+			for (String field : FIELDS)
+				attributes.add(new MBeanAttributeInfo(name + "." + field, "long", name + " " + field + " (ms)",
+						true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "Parallels Desktop Cloud metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+				new MBeanOperationInfo[0], null);
+	}
+}
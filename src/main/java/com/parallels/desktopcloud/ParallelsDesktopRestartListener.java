@@ -27,16 +27,31 @@ package com.parallels.desktopcloud;
 import hudson.Extension;
 import hudson.model.RestartListener;
 import hudson.model.Computer;
+import hudson.slaves.Cloud;
 import jenkins.model.Jenkins;
 
 
 @Extension
 public class ParallelsDesktopRestartListener extends RestartListener
 {
+	// A safe restart drains all clouds, so idle VMs are suspended in parallel
+	// instead of one by one as their idle timeouts expire. The clouds end such
+	// a drain by themselves if the restart is cancelled.
 	@Override
 	public boolean isReadyToRestart()
 	{
-		for (Computer c: Jenkins.getInstance().getComputers())
+		Jenkins jenkins = Jenkins.getInstance();
+		for (Cloud cloud : jenkins.clouds)
+		{
+			if (!(cloud instanceof ParallelsDesktopCloud))
+				continue;
+			ParallelsDesktopCloud pdCloud = (ParallelsDesktopCloud)cloud;
+			if (jenkins.isQuietingDown())
+				pdCloud.drainForRestart();
+			else
+				pdCloud.checkRestartCancelled();
+		}
+		for (Computer c: jenkins.getComputers())
 		{
 			if (c instanceof ParallelsDesktopConnectorSlaveComputer)
 			{
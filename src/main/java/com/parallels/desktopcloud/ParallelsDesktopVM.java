@@ -26,18 +26,27 @@ package com.parallels.desktopcloud;
 
 import hudson.Extension;
 import hudson.Functions;
+import hudson.Util;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
+import hudson.model.Label;
 import hudson.model.Slave;
+import hudson.model.labels.LabelAtom;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.NodeProperty;
 import hudson.slaves.NodePropertyDescriptor;
+import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import java.lang.reflect.Field;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 
 
 public class ParallelsDesktopVM implements Describable<ParallelsDesktopVM>
@@ -49,7 +58,8 @@ public class ParallelsDesktopVM implements Describable<ParallelsDesktopVM>
 		Suspend,
 		Stop,
 		KeepRunning,
-		ReturnPrevState
+		ReturnPrevState,
+		RevertToSnapshot
 	}
 	
 	public enum VMStates
@@ -66,9 +76,23 @@ public class ParallelsDesktopVM implements Describable<ParallelsDesktopVM>
 	private transient String slaveName;
 	private final ComputerLauncher launcher;
 	private ParallelsDesktopNodeProperties nodeProperties;
-	private transient boolean provisioned = false;
+	private transient VMLifecycle lifecycle;
+	private transient volatile long provisionStartTime;
 	private PostBuildBehaviors postBuildBehavior;
-	private transient VMStates prevVmState;
+	private transient Set<LabelAtom> labelSet;
+	private transient ParallelsDesktopVMSlave slave;
+	private String snapshotId;
+	private boolean oneShot;
+	private boolean useAsTemplate;
+	private int maxClones;
+	private int cpus;
+	private int memSizeMb;
+	private String numExecutors;
+	private transient volatile int knownCpus;
+	static final String AUTO_EXECUTORS = "auto";
+	private transient AtomicInteger liveClones;
+	private transient ParallelsDesktopVM template;
+	private transient AtomicBoolean cloneSlotHeld;
 
 	@DataBoundConstructor
 	public ParallelsDesktopVM(String vmid, String labels, String remoteFS, ComputerLauncher launcher, String postBuildBehavior, ParallelsDesktopNodeProperties nodeProperties)
@@ -84,23 +108,208 @@ public class ParallelsDesktopVM implements Describable<ParallelsDesktopVM>
 		}
 		catch(Exception ex)
 		{
-			LOGGER.log(Level.SEVERE, "Error: %s", ex);
+			LOGGER.log(Level.WARNING, "Error: %s", ex);
 		}
 		if (this.postBuildBehavior == null)
 			this.postBuildBehavior = PostBuildBehaviors.Suspend;
-		prevVmState = VMStates.Suspended;
 	}
 
 	public String getVmid()
 	{
 		return vmid;
 	}
+
+	public String getSnapshotId()
+	{
+		return snapshotId;
+	}
+
+	@DataBoundSetter
+	public void setSnapshotId(String snapshotId)
+	{
+		this.snapshotId = snapshotId;
+	}
+
+	public boolean getOneShot()
+	{
+		return oneShot;
+	}
+
+	@DataBoundSetter
+	public void setOneShot(boolean oneShot)
+	{
+		this.oneShot = oneShot;
+	}
+
+	boolean isOneShot()
+	{
+		return oneShot;
+	}
+
+	public boolean getUseAsTemplate()
+	{
+		return useAsTemplate;
+	}
+
+	@DataBoundSetter
+	public void setUseAsTemplate(boolean useAsTemplate)
+	{
+		this.useAsTemplate = useAsTemplate;
+	}
+
+	public int getMaxClones()
+	{
+		return maxClones;
+	}
+
+	@DataBoundSetter
+	public void setMaxClones(int maxClones)
+	{
+		this.maxClones = maxClones;
+	}
+
+	// Number of CPUs to give the VM before it is started, 0 to keep its own.
+	public int getCpus()
+	{
+		return cpus;
+	}
+
+	@DataBoundSetter
+	public void setCpus(int cpus)
+	{
+		this.cpus = cpus;
+	}
+
+	// RAM size to give the VM before it is started, 0 to keep its own.
+	public int getMemSizeMb()
+	{
+		return memSizeMb;
+	}
+
+	@DataBoundSetter
+	public void setMemSizeMb(int memSizeMb)
+	{
+		this.memSizeMb = memSizeMb;
+	}
+
+	// Executors of the VM slave: a number, or "auto" for one per VM CPU.
+	public String getNumExecutors()
+	{
+		return numExecutors;
+	}
+
+	@DataBoundSetter
+	public void setNumExecutors(String numExecutors)
+	{
+		this.numExecutors = numExecutors;
+	}
+
+	boolean hasAutoExecutors()
+	{
+		return numExecutors != null && AUTO_EXECUTORS.equalsIgnoreCase(numExecutors.trim());
+	}
+
+	// CPUs the VM runs with, as last seen in the host inventory.
+	void setKnownCpus(int knownCpus)
+	{
+		this.knownCpus = knownCpus;
+	}
+
+	// Until the VM has been seen on a host, "auto" counts its profile CPUs, or
+	// a single executor without a profile.
+	int getExecutorCount()
+	{
+		if (hasAutoExecutors())
+			return Math.max(knownCpus > 0 ? knownCpus : cpus, 1);
+		if (numExecutors == null)
+			return 1;
+		try
+		{
+			return Math.max(Integer.parseInt(numExecutors.trim()), 1);
+		}
+		catch (NumberFormatException ex)
+		{
+			return 1;
+		}
+	}
+
+	boolean hasResourceProfile()
+	{
+		return cpus > 0 || memSizeMb > 0;
+	}
+
+	boolean isTemplate()
+	{
+		return useAsTemplate && template == null;
+	}
+
+	boolean isClone()
+	{
+		return template != null;
+	}
+
+	ParallelsDesktopVM getTemplate()
+	{
+		return template;
+	}
+
+	private synchronized AtomicInteger getLiveClones()
+	{
+		if (liveClones == null)
+			liveClones = new AtomicInteger();
+		return liveClones;
+	}
+
+	// Takes one of the maxClones slots of this template, or returns null when
+	// all of them are in use.
+	ParallelsDesktopVM createClone(String cloneId)
+	{
+		AtomicInteger clones = getLiveClones();
+		while (true)
+		{
+			int n = clones.get();
+			if (n >= maxClones)
+				return null;
+			if (clones.compareAndSet(n, n + 1))
+				break;
+		}
+		ComputerLauncher cloneLauncher = (ComputerLauncher)Jenkins.XSTREAM2.fromXML(Jenkins.XSTREAM2.toXML(launcher));
+		ParallelsDesktopVM clone = new ParallelsDesktopVM(cloneId, labels, remoteFS, cloneLauncher,
+				PostBuildBehaviors.Stop.name(), nodeProperties);
+		clone.template = this;
+		clone.oneShot = oneShot;
+		clone.cpus = cpus;
+		clone.memSizeMb = memSizeMb;
+		clone.numExecutors = numExecutors;
+		clone.knownCpus = knownCpus;
+		clone.cloneSlotHeld = new AtomicBoolean(true);
+		return clone;
+	}
+
+	boolean isCloneSlotHeld()
+	{
+		return template != null && cloneSlotHeld.get();
+	}
+
+	// Gives the template slot of this clone back once the clone is deleted.
+	void releaseCloneSlot()
+	{
+		if (template != null && cloneSlotHeld.compareAndSet(true, false))
+			template.getLiveClones().decrementAndGet();
+	}
 	
 	public String getLabels()
 	{
 		return labels;
 	}
 
+	Set<LabelAtom> getLabelSet()
+	{
+		if (labelSet == null)
+			labelSet = Label.parse(labels);
+		return labelSet;
+	}
+
 	public String getRemoteFS()
 	{
 		return remoteFS;
@@ -131,14 +340,30 @@ public class ParallelsDesktopVM implements Describable<ParallelsDesktopVM>
 		this.nodeProperties = nodeProperties;
 	}
 
-	public void setProvisioned(boolean provisioned)
+	synchronized VMLifecycle getLifecycle()
+	{
+		if (lifecycle == null)
+			lifecycle = new VMLifecycle();
+		return lifecycle;
+	}
+
+	// Takes the VM for provisioning, false if someone else already has it.
+	boolean reserve()
+	{
+		if (!getLifecycle().reserve())
+			return false;
+		provisionStartTime = System.currentTimeMillis();
+		return true;
+	}
+
+	long getProvisionStartTime()
 	{
-		this.provisioned = provisioned;
+		return provisionStartTime;
 	}
 
 	public boolean isProvisioned()
 	{
-		return provisioned;
+		return getLifecycle().isProvisioned();
 	}
 	
 	public String getPostBuildBehavior()
@@ -169,37 +394,56 @@ public class ParallelsDesktopVM implements Describable<ParallelsDesktopVM>
 
 	public void setPrevVMState(VMStates state)
 	{
-		prevVmState = state;
+		getLifecycle().setPrevVMState(state);
 	}
 
-	public String getPostBuildCommand()
+	// prlctl command to run for the VM after the build: the verb followed by
+	// its extra arguments, or null to keep the VM running.
+	public String[] getPostBuildCommand()
 	{
 		switch (postBuildBehavior)
 		{
 		case ReturnPrevState:
-			switch (prevVmState)
+			switch (getLifecycle().getPrevVMState())
 			{
 			case Paused:
-				return "pause";
+				return new String[] { "pause" };
 			case Running:
 				return null;
 			case Stopped:
-				return "stop";
+				return new String[] { "stop" };
 			default:
-				return "suspend";
+				return new String[] { "suspend" };
 			}
 		case KeepRunning:
 			return null;
 		case Stop:
-			return "stop";
+			return new String[] { "stop" };
+		case RevertToSnapshot:
+			if (snapshotId == null || snapshotId.isEmpty())
+				return new String[] { "suspend" };
+			// Leave the VM suspended at the snapshot's memory image, so the next
+			// start is a plain resume.
+			return new String[] { "snapshot-switch", "--id", snapshotId, "--skip-resume" };
 		default:
-			return "suspend";
+			return new String[] { "suspend" };
 		}
 	}
 
+	void onSlaveCreated(ParallelsDesktopVMSlave slave)
+	{
+		this.slave = slave;
+	}
+
 	void onSlaveReleased(ParallelsDesktopVMSlave slave)
 	{
-		setProvisioned(false);
+		if (this.slave == slave)
+			this.slave = null;
+	}
+
+	ParallelsDesktopVMSlave getSlave()
+	{
+		return slave;
 	}
 
 	void setLauncherIP(String ip)
@@ -214,7 +458,7 @@ public class ParallelsDesktopVM implements Describable<ParallelsDesktopVM>
 		}
 		catch (Exception ex)
 		{
-			LOGGER.log(Level.SEVERE, "Error: %s", ex);
+			LOGGER.logVM(vmid, Level.WARNING, "Error: %s", ex);
 		}
 	}
 
@@ -231,7 +475,7 @@ public class ParallelsDesktopVM implements Describable<ParallelsDesktopVM>
 		}
 		catch (Exception ex)
 		{
-			LOGGER.log(Level.SEVERE, "Error: %s", ex);
+			LOGGER.logVM(vmid, Level.WARNING, "Error: %s", ex);
 		}
 		return null;
 	}
@@ -258,9 +502,17 @@ public class ParallelsDesktopVM implements Describable<ParallelsDesktopVM>
 			m.add(Messages.Parallels_Behavior_Stop(), PostBuildBehaviors.Stop.name());
 			m.add(Messages.Parallels_Behavior_KeepRunning(), PostBuildBehaviors.KeepRunning.name());
 			m.add(Messages.Parallels_Behavior_ReturnPrevState(), PostBuildBehaviors.ReturnPrevState.name());
+			m.add(Messages.Parallels_Behavior_RevertToSnapshot(), PostBuildBehaviors.RevertToSnapshot.name());
 			return m;
 		}
 
+		public FormValidation doCheckSnapshotId(@QueryParameter String value, @QueryParameter String postBuildBehavior)
+		{
+			if (PostBuildBehaviors.RevertToSnapshot.name().equals(postBuildBehavior) && Util.fixEmptyAndTrim(value) == null)
+				return FormValidation.error(Messages.Parallels_Error_SnapshotIdRequired());
+			return FormValidation.ok();
+		}
+
 		public List<NodePropertyDescriptor> getNodePropertyDescriptors() {
 			return Functions.getNodePropertyDescriptors(Slave.class);
 		}
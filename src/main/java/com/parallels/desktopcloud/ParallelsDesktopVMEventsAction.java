@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.TransientComputerActionFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+
+// Shows the recent events of a VM on its agent page.
+public class ParallelsDesktopVMEventsAction implements Action
+{
+	private final ParallelsDesktopVMSlaveComputer computer;
+
+	ParallelsDesktopVMEventsAction(ParallelsDesktopVMSlaveComputer computer)
+	{
+		this.computer = computer;
+	}
+
+	public ParallelsDesktopVMSlaveComputer getComputer()
+	{
+		return computer;
+	}
+
+	public List<ParallelsLogger.Event> getEvents()
+	{
+		ParallelsDesktopVMSlave slave = computer.getNode();
+		if (slave == null)
+			return Collections.emptyList();
+		return ParallelsLogger.getEvents(slave.getVm().getVmid());
+	}
+
+	@Override
+	public String getIconFileName()
+	{
+		// VM slaves never grant CONFIGURE, see ParallelsDesktopVMSlaveComputer.
+		return computer.hasPermission(Computer.EXTENDED_READ) ? "clipboard.png" : null;
+	}
+
+	@Override
+	public String getDisplayName()
+	{
+		return "VM Events";
+	}
+
+	@Override
+	public String getUrlName()
+	{
+		return "vmEvents";
+	}
+
+	@Extension
+	public static final class Factory extends TransientComputerActionFactory
+	{
+		@Override
+		public Collection<? extends Action> createFor(Computer target)
+		{
+			if (!(target instanceof ParallelsDesktopVMSlaveComputer))
+				return Collections.emptyList();
+			return Collections.singletonList(
+					new ParallelsDesktopVMEventsAction((ParallelsDesktopVMSlaveComputer)target));
+		}
+	}
+}
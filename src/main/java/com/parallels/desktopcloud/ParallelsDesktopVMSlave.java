@@ -34,6 +34,7 @@ import hudson.model.Node;
 import hudson.slaves.EphemeralNode;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import org.kohsuke.stapler.DataBoundConstructor;
 
@@ -43,15 +44,59 @@ public class ParallelsDesktopVMSlave extends AbstractCloudSlave implements Ephem
 	private static final ParallelsLogger LOGGER = ParallelsLogger.getLogger("PDVMSlave");
 	private final transient ParallelsDesktopConnectorSlaveComputer connector;
 	private final ParallelsDesktopVM vm;
+	private final transient long creationTime = System.currentTimeMillis();
+	// Slave of a VM taken over after a restart rather than provisioned.
+	private final transient boolean reattached;
+	private final transient AtomicBoolean connected = new AtomicBoolean();
 
 	@DataBoundConstructor
 	public ParallelsDesktopVMSlave(ParallelsDesktopVM vm, ParallelsDesktopConnectorSlaveComputer connector)
 			throws IOException, Descriptor.FormException
 	{
-		super(vm.getSlaveName(), "", vm.getRemoteFS(), 1, Mode.NORMAL, vm.getLabels(), vm.getLauncher(),
+		this(vm, connector, false);
+	}
+
+	ParallelsDesktopVMSlave(ParallelsDesktopVM vm, ParallelsDesktopConnectorSlaveComputer connector, boolean reattached)
+			throws IOException, Descriptor.FormException
+	{
+		super(vm.getSlaveName(), "", vm.getRemoteFS(), vm.getExecutorCount(), Mode.NORMAL, vm.getLabels(), vm.getLauncher(),
 				new ParallelsDesktopCloudRetentionStrategy(), vm.getNodeProperties());
 		this.connector = connector;
 		this.vm = vm;
+		this.reattached = reattached;
+		vm.onSlaveCreated(this);
+	}
+
+	ParallelsDesktopConnectorSlaveComputer getConnector()
+	{
+		return connector;
+	}
+
+	long getCreationTime()
+	{
+		return creationTime;
+	}
+
+	boolean isReattached()
+	{
+		return reattached;
+	}
+
+	// True only for the first agent connection of the slave.
+	boolean claimFirstConnect()
+	{
+		return connected.compareAndSet(false, true);
+	}
+
+	ParallelsDesktopVM getVm()
+	{
+		return vm;
+	}
+
+	ParallelsDesktopCloud getCloud()
+	{
+		ParallelsDesktopConnectorSlave connectorSlave = connector.getNode();
+		return connectorSlave == null ? null : connectorSlave.getOwner();
 	}
 
 	@Override
@@ -63,10 +108,10 @@ public class ParallelsDesktopVMSlave extends AbstractCloudSlave implements Ephem
 	@Override
 	protected void _terminate(TaskListener tl) throws IOException, InterruptedException
 	{
-		LOGGER.log(Level.SEVERE, "!!! Terminating slave node '%s', id '%s'", getNodeName(), vm.getVmid());
+		LOGGER.logVM(vm.getVmid(), Level.INFO, "Terminating slave node '%s'", getNodeName());
 		connector.postBuildAction(vm);
 		vm.onSlaveReleased(this);
-		LOGGER.log(Level.SEVERE, "Node was terminated.");
+		LOGGER.logVM(vm.getVmid(), Level.FINE, "Node was terminated.");
 	}
 
 	@Override
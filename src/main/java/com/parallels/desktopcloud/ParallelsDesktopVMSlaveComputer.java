@@ -24,6 +24,8 @@
 
 package com.parallels.desktopcloud;
 
+import hudson.model.Executor;
+import hudson.model.Queue;
 import hudson.security.Permission;
 import hudson.slaves.AbstractCloudComputer;
 import java.util.logging.Level;
@@ -41,9 +43,79 @@ public class ParallelsDesktopVMSlaveComputer extends AbstractCloudComputer<Paral
 	@Override
 	protected void onRemoved()
 	{
-		LOGGER.log(Level.SEVERE, "!!!!!! ON REMOVED");
+		LOGGER.log(Level.FINE, "Computer %s removed", getName());
 	}
 	
+	@Override
+	public void taskStarted(Executor executor, Queue.Task task)
+	{
+		super.taskStarted(executor, task);
+		ParallelsDesktopVMSlave slave = getNode();
+		ParallelsDesktopCloud cloud = slave == null ? null : slave.getCloud();
+		if (cloud != null)
+			cloud.onVmTaken(slave.getVm());
+	}
+
+	@Override
+	public void taskCompleted(Executor executor, Queue.Task task, long durationMS)
+	{
+		super.taskCompleted(executor, task, durationMS);
+		releaseIfDone(executor);
+	}
+
+	@Override
+	public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems)
+	{
+		super.taskCompletedWithProblems(executor, task, durationMS, problems);
+		releaseIfDone(executor);
+	}
+
+	// One-shot VMs and VMs of a draining cloud are released after their build.
+	// A slave with several executors takes no more builds from then on and is
+	// released once the last running one finishes.
+	private void releaseIfDone(Executor finished)
+	{
+		ParallelsDesktopVMSlave slave = getNode();
+		if (slave == null)
+			return;
+		ParallelsDesktopCloud cloud = slave.getCloud();
+		if (slave.getVm().isOneShot())
+			LOGGER.log(Level.INFO, "Build finished on one-shot VM computer %s, releasing it", getName());
+		else if (cloud != null && cloud.isDraining())
+			LOGGER.log(Level.INFO, "Build finished on VM computer %s of a draining cloud, releasing it", getName());
+		else
+			return;
+		for (Executor e : getExecutors())
+		{
+			if (e != finished && !e.isIdle())
+			{
+				setAcceptingTasks(false);
+				return;
+			}
+		}
+		terminateSlave();
+	}
+
+	boolean isTearingDown()
+	{
+		return getTeardownStage() != null;
+	}
+
+	VMTeardownPipeline.Stage getTeardownStage()
+	{
+		ParallelsDesktopVMSlave slave = getNode();
+		return slave == null ? null : slave.getConnector().getTeardownPipeline().getStage(getName());
+	}
+
+	// Hands the slave over to its host's teardown pipeline and returns at once.
+	void terminateSlave()
+	{
+		ParallelsDesktopVMSlave slave = getNode();
+		if (slave == null)
+			return;
+		slave.getConnector().getTeardownPipeline().submit(this);
+	}
+
 	@Override
 	public boolean hasPermission(Permission permission)
 	{
@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+
+// Number of idle, connected VM slaves a cloud keeps ready for a label.
+public class ParallelsDesktopWarmPool extends AbstractDescribableImpl<ParallelsDesktopWarmPool>
+{
+	private final String labelString;
+	private final int size;
+
+	@DataBoundConstructor
+	public ParallelsDesktopWarmPool(String labelString, int size)
+	{
+		this.labelString = labelString;
+		this.size = size;
+	}
+
+	public String getLabelString()
+	{
+		return labelString;
+	}
+
+	public int getSize()
+	{
+		return size;
+	}
+
+	Label getLabel()
+	{
+		return Jenkins.getInstance().getLabel(labelString);
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends Descriptor<ParallelsDesktopWarmPool>
+	{
+		@Override
+		public String getDisplayName()
+		{
+			return "Parallels Desktop warm pool";
+		}
+	}
+}
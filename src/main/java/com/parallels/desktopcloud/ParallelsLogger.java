@@ -24,11 +24,25 @@
 
 package com.parallels.desktopcloud;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ParallelsLogger
 {
+	// Per-VM events at this level or above are kept in memory for the agent
+	// page even when the Jenkins log would drop them.
+	private static final Level EVENT_LEVEL = Level.FINE;
+	private static final int EVENTS_PER_VM = 100;
+	private static final ConcurrentMap<String, Deque<Event>> events = new ConcurrentHashMap<String, Deque<Event>>();
+
 	private final Logger nativeLogger;
 	
 	public ParallelsLogger(String name)
@@ -43,9 +57,90 @@ public class ParallelsLogger
 		String text = String.format(message, args);
 		nativeLogger.log(level, text);
 	}
+
+	// Logs an event of one VM: the message is prefixed with the VM ID and kept
+	// in the VM's event buffer. It is formatted right away, so the buffer
+	// shows the arguments as they were when the event happened.
+	public void logVM(String vmId, Level level, String message, Object... args)
+	{
+		boolean isEvent = level.intValue() >= EVENT_LEVEL.intValue();
+		boolean isLoggable = nativeLogger.isLoggable(level);
+		if (!isEvent && !isLoggable)
+			return;
+		String text = String.format(message, args);
+		if (isEvent)
+			addEvent(vmId, new Event(level, text));
+		if (isLoggable)
+			nativeLogger.log(level, "[" + vmId + "] " + text);
+	}
 	
 	public static ParallelsLogger getLogger(String name)
 	{
 		return new ParallelsLogger(name);
 	}
+
+	private static void addEvent(String vmId, Event event)
+	{
+		Deque<Event> buffer = events.get(vmId);
+		if (buffer == null)
+		{
+			events.putIfAbsent(vmId, new ArrayDeque<Event>(EVENTS_PER_VM));
+			buffer = events.get(vmId);
+		}
+		synchronized (buffer)
+		{
+			if (buffer.size() == EVENTS_PER_VM)
+				buffer.removeFirst();
+			buffer.addLast(event);
+		}
+	}
+
+	public static List<Event> getEvents(String vmId)
+	{
+		Deque<Event> buffer = events.get(vmId);
+		if (buffer == null)
+			return Collections.emptyList();
+		synchronized (buffer)
+		{
+			return new ArrayList<Event>(buffer);
+		}
+	}
+
+	static void discardEvents(String vmId)
+	{
+		events.remove(vmId);
+	}
+
+	public static final class Event
+	{
+		private final long time = System.currentTimeMillis();
+		private final Level level;
+		private final String text;
+
+		private Event(Level level, String text)
+		{
+			this.level = level;
+			this.text = text;
+		}
+
+		public long getTime()
+		{
+			return time;
+		}
+
+		public Date getDate()
+		{
+			return new Date(time);
+		}
+
+		public String getLevel()
+		{
+			return level.getName();
+		}
+
+		public String getText()
+		{
+			return text;
+		}
+	}
 }
@@ -0,0 +1,350 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import hudson.remoting.Channel;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import jenkins.security.MasterToSlaveCallable;
+
+
+// Lives on the connector host for the lifetime of the channel. Requests from
+// all master threads are queued here and run prlctl with bounded concurrency;
+// identical 'list' requests which are already in flight share one prlctl run.
+final class PrlctlServer implements PrlctlService
+{
+	private static final ParallelsLogger LOGGER = ParallelsLogger.getLogger("PDPrlctlServer");
+	private static final String cmd = System.getProperty(PrlctlServer.class.getName() + ".command",
+			"/usr/local/bin/prlctl");
+	private static final int MAX_CONCURRENT_COMMANDS = 4;
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_COMMANDS, new ThreadFactory()
+	{
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "prlctl command #" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private final Map<String, Future<List<VMInfo>>> listsInFlight = new HashMap<String, Future<List<VMInfo>>>();
+
+	static PrlctlService install(Channel channel) throws Exception
+	{
+		return channel.call(new InstallCallable());
+	}
+
+	private static final class InstallCallable extends MasterToSlaveCallable<PrlctlService, Exception>
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public PrlctlService call() throws Exception
+		{
+			final PrlctlServer server = new PrlctlServer();
+			Channel channel = Channel.current();
+			channel.addListener(new Channel.Listener()
+			{
+				@Override
+				public void onClosed(Channel channel, IOException cause)
+				{
+					server.executor.shutdownNow();
+				}
+			});
+			return channel.export(PrlctlService.class, server);
+		}
+	}
+
+	@Override
+	public List<VMInfo> list(final String... options) throws Exception
+	{
+		final String key = Arrays.toString(options);
+		Future<List<VMInfo>> result;
+		synchronized (listsInFlight)
+		{
+			result = listsInFlight.get(key);
+			if (result == null)
+			{
+				result = executor.submit(new Callable<List<VMInfo>>()
+				{
+					@Override
+					public List<VMInfo> call() throws Exception
+					{
+						try
+						{
+							List<String> params = new ArrayList<String>();
+							params.add("list");
+							params.addAll(Arrays.asList(options));
+							return runList(params);
+						}
+						finally
+						{
+							synchronized (listsInFlight)
+							{
+								listsInFlight.remove(key);
+							}
+						}
+					}
+				});
+				listsInFlight.put(key, result);
+			}
+		}
+		return await(result);
+	}
+
+	@Override
+	public String start(String vmId) throws Exception
+	{
+		return submit("start", vmId);
+	}
+
+	@Override
+	public String suspend(String vmId) throws Exception
+	{
+		return submit("suspend", vmId);
+	}
+
+	@Override
+	public String stop(String vmId) throws Exception
+	{
+		return submit("stop", vmId);
+	}
+
+	@Override
+	public String pause(String vmId) throws Exception
+	{
+		return submit("pause", vmId);
+	}
+
+	@Override
+	public String set(String vmId, String... options) throws Exception
+	{
+		return submit(withOptions("set", vmId, options));
+	}
+
+	@Override
+	public String snapshotSwitch(String vmId, String... options) throws Exception
+	{
+		return submit(withOptions("snapshot-switch", vmId, options));
+	}
+
+	private static String[] withOptions(String command, String vmId, String... options)
+	{
+		List<String> params = new ArrayList<String>();
+		params.add(command);
+		params.add(vmId);
+		params.addAll(Arrays.asList(options));
+		return params.toArray(new String[params.size()]);
+	}
+
+	@Override
+	public String cloneLinked(String templateId, String cloneName) throws Exception
+	{
+		return submit("clone", templateId, "--name", cloneName, "--linked");
+	}
+
+	// Kills the VM if it is still running and removes it with its disks.
+	@Override
+	public String delete(final String vmId) throws Exception
+	{
+		return await(executor.submit(new Callable<String>()
+		{
+			@Override
+			public String call() throws Exception
+			{
+				try
+				{
+					run(Arrays.asList("stop", vmId, "--kill"));
+				}
+				catch (PrlCtlFailedException ex)
+				{
+					LOGGER.log(Level.FINE, "VM '%s' is not running: %s", vmId, ex);
+				}
+				return run(Arrays.asList("delete", vmId));
+			}
+		}));
+	}
+
+	private String submit(final String... params) throws Exception
+	{
+		return await(executor.submit(new Callable<String>()
+		{
+			@Override
+			public String call() throws Exception
+			{
+				return run(Arrays.asList(params));
+			}
+		}));
+	}
+
+	private static <V> V await(Future<V> result) throws Exception
+	{
+		try
+		{
+			return result.get();
+		}
+		catch (ExecutionException ex)
+		{
+			Throwable cause = ex.getCause();
+			if (cause instanceof Exception)
+				throw (Exception)cause;
+			throw ex;
+		}
+	}
+
+	private static Process startPrlctl(ProcessBuilder pb, List<String> params) throws IOException
+	{
+		List<String> cmds = new ArrayList<String>();
+		cmds.add(cmd);
+		cmds.addAll(params);
+
+		LOGGER.log(Level.FINE, "Running command: %s", cmds);
+		pb.command(cmds);
+		return pb.start();
+	}
+
+	private static String run(List<String> params) throws IOException, PrlCtlFailedException
+	{
+		ProcessBuilder pb = new ProcessBuilder();
+		pb.redirectErrorStream(true);
+		Process pr = startPrlctl(pb, params);
+		String result = readAll(new InputStreamReader(pr.getInputStream()));
+		int rc = waitFor(pr);
+		if (rc != 0)
+			throw new PrlCtlFailedException(rc, result);
+		return result;
+	}
+
+	// Parses 'prlctl list --json' output while it is being read and keeps only
+	// the fields stored in VMInfo.
+	private static List<VMInfo> runList(List<String> params) throws IOException, PrlCtlFailedException
+	{
+		File errFile = File.createTempFile("prlctl", ".err");
+		try
+		{
+			ProcessBuilder pb = new ProcessBuilder();
+			pb.redirectError(ProcessBuilder.Redirect.to(errFile));
+			Process pr = startPrlctl(pb, params);
+			List<VMInfo> result;
+			IOException parseError = null;
+			Reader out = new BufferedReader(new InputStreamReader(pr.getInputStream(), "UTF-8"));
+			try
+			{
+				result = VMInfoParser.parse(out);
+				// Drain the rest so that prlctl never blocks on a full pipe.
+				while (out.read() != -1)
+					;
+			}
+			catch (IOException ex)
+			{
+				result = null;
+				parseError = ex;
+			}
+			finally
+			{
+				out.close();
+			}
+			int rc = waitFor(pr);
+			if (rc != 0)
+				throw new PrlCtlFailedException(rc, readAll(new InputStreamReader(new FileInputStream(errFile))));
+			if (parseError != null)
+				throw parseError;
+			return result;
+		}
+		finally
+		{
+			if (!errFile.delete())
+				errFile.deleteOnExit();
+		}
+	}
+
+	private static int waitFor(Process pr)
+	{
+		int rc = 0;
+		try
+		{
+			rc = pr.waitFor();
+		}
+		catch (InterruptedException ex)
+		{
+			LOGGER.log(Level.WARNING, "Error: %s", ex.toString());
+		}
+		return rc;
+	}
+
+	static String readAll(Reader reader) throws IOException
+	{
+		BufferedReader in = new BufferedReader(reader);
+		try
+		{
+			StringBuilder result = new StringBuilder();
+			char[] buf = new char[8192];
+			int n;
+			while ((n = in.read(buf)) != -1)
+				result.append(buf, 0, n);
+			return result.toString();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	static final class PrlCtlFailedException extends Exception
+	{
+		private static String formatMessage(int rc, String output)
+		{
+			String msg = String.format("prlctl execution failed with code %d", rc);
+			if (!output.isEmpty())
+				msg += String.format(" , output:\n%s", output);
+			return msg;
+		}
+
+		PrlCtlFailedException(int rc, String output)
+		{
+			super(formatMessage(rc, output));
+		}
+	}
+}
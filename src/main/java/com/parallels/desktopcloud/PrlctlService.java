@@ -0,0 +1,50 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.util.List;
+
+
+// VM operations served by the long-lived PrlctlServer on a connector host.
+public interface PrlctlService
+{
+	List<VMInfo> list(String... options) throws Exception;
+
+	String start(String vmId) throws Exception;
+
+	String suspend(String vmId) throws Exception;
+
+	String stop(String vmId) throws Exception;
+
+	String pause(String vmId) throws Exception;
+
+	String set(String vmId, String... options) throws Exception;
+
+	String snapshotSwitch(String vmId, String... options) throws Exception;
+
+	String cloneLinked(String templateId, String cloneName) throws Exception;
+
+	String delete(String vmId) throws Exception;
+}
@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.util.List;
+
+
+// Records the latency of every PrlctlService call by prlctl verb.
+final class TimedPrlctlService implements PrlctlService
+{
+	private final PrlctlService target;
+	private final ParallelsDesktopMetrics metrics = ParallelsDesktopMetrics.get();
+
+	TimedPrlctlService(PrlctlService target)
+	{
+		this.target = target;
+	}
+
+	private void done(String verb, long start, boolean ok)
+	{
+		if (ok)
+			metrics.record("prlctl." + verb, start);
+		else
+			metrics.recordError("prlctl." + verb);
+	}
+
+	@Override
+	public List<VMInfo> list(String... options) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		boolean ok = false;
+		try
+		{
+			List<VMInfo> result = target.list(options);
+			ok = true;
+			return result;
+		}
+		finally
+		{
+			done("list", start, ok);
+		}
+	}
+
+	@Override
+	public String start(String vmId) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		boolean ok = false;
+		try
+		{
+			String result = target.start(vmId);
+			ok = true;
+			return result;
+		}
+		finally
+		{
+			done("start", start, ok);
+		}
+	}
+
+	@Override
+	public String suspend(String vmId) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		boolean ok = false;
+		try
+		{
+			String result = target.suspend(vmId);
+			ok = true;
+			return result;
+		}
+		finally
+		{
+			done("suspend", start, ok);
+		}
+	}
+
+	@Override
+	public String stop(String vmId) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		boolean ok = false;
+		try
+		{
+			String result = target.stop(vmId);
+			ok = true;
+			return result;
+		}
+		finally
+		{
+			done("stop", start, ok);
+		}
+	}
+
+	@Override
+	public String pause(String vmId) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		boolean ok = false;
+		try
+		{
+			String result = target.pause(vmId);
+			ok = true;
+			return result;
+		}
+		finally
+		{
+			done("pause", start, ok);
+		}
+	}
+
+	@Override
+	public String set(String vmId, String... options) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		boolean ok = false;
+		try
+		{
+			String result = target.set(vmId, options);
+			ok = true;
+			return result;
+		}
+		finally
+		{
+			done("set", start, ok);
+		}
+	}
+
+	@Override
+	public String snapshotSwitch(String vmId, String... options) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		boolean ok = false;
+		try
+		{
+			String result = target.snapshotSwitch(vmId, options);
+			ok = true;
+			return result;
+		}
+		finally
+		{
+			done("snapshot-switch", start, ok);
+		}
+	}
+
+	@Override
+	public String cloneLinked(String templateId, String cloneName) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		boolean ok = false;
+		try
+		{
+			String result = target.cloneLinked(templateId, cloneName);
+			ok = true;
+			return result;
+		}
+		finally
+		{
+			done("clone", start, ok);
+		}
+	}
+
+	@Override
+	public String delete(String vmId) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		boolean ok = false;
+		try
+		{
+			String result = target.delete(vmId);
+			ok = true;
+			return result;
+		}
+		finally
+		{
+			done("delete", start, ok);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import com.google.common.util.concurrent.SettableFuture;
+import hudson.model.Computer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import org.apache.commons.validator.routines.InetAddressValidator;
+
+
+// Waits for IP addresses of all VMs being provisioned on one connector with
+// a single 'prlctl list -f' call per poll. Polling is fast right after a VM
+// is added and backs off while nothing changes.
+final class VMIPWatcher
+{
+	private static final ParallelsLogger LOGGER = ParallelsLogger.getLogger("PDVMIPWatcher");
+	static final long TIMEOUT = 180 * 1000;
+	private static final long MIN_INTERVAL = 500;
+	private static final long MAX_INTERVAL = 5 * 1000;
+
+	private final VMInventoryCache vmList;
+	private final Map<String, PendingVM> pending = new HashMap<String, PendingVM>();
+	private long interval = MIN_INTERVAL;
+	private boolean polling = false;
+
+	private static final class PendingVM
+	{
+		private final SettableFuture<String> ip = SettableFuture.create();
+		private final long deadline = System.currentTimeMillis() + TIMEOUT;
+	}
+
+	VMIPWatcher(VMInventoryCache vmList)
+	{
+		this.vmList = vmList;
+	}
+
+	synchronized Future<String> watch(String vmId)
+	{
+		PendingVM vm = pending.get(vmId);
+		if (vm == null)
+		{
+			vm = new PendingVM();
+			pending.put(vmId, vm);
+		}
+		interval = MIN_INTERVAL;
+		if (!polling)
+		{
+			polling = true;
+			Computer.threadPoolForRemoting.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					pollLoop();
+				}
+			});
+		}
+		return vm.ip;
+	}
+
+	synchronized void cancel(String vmId)
+	{
+		PendingVM vm = pending.remove(vmId);
+		if (vm != null)
+			vm.ip.cancel(false);
+	}
+
+	private void pollLoop()
+	{
+		try
+		{
+			long sleepFor;
+			while ((sleepFor = pollOnce()) > 0)
+				Thread.sleep(sleepFor);
+		}
+		catch (InterruptedException ex)
+		{
+			LOGGER.log(Level.WARNING, "IP polling interrupted");
+			failAll(ex);
+		}
+	}
+
+	// Returns the delay before the next poll or 0 when nothing is pending anymore.
+	private long pollOnce()
+	{
+		long maxAge;
+		synchronized (this)
+		{
+			if (pending.isEmpty())
+			{
+				polling = false;
+				return 0;
+			}
+			maxAge = interval;
+		}
+
+		List<VMInfo> vms = null;
+		try
+		{
+			vms = vmList.get(maxAge);
+		}
+		catch (Exception ex)
+		{
+			LOGGER.log(Level.WARNING, "Error: %s\nFailed to list VMs", ex);
+		}
+
+		InetAddressValidator validator = InetAddressValidator.getInstance();
+		synchronized (this)
+		{
+			long now = System.currentTimeMillis();
+			boolean progress = false;
+			for (Iterator<Map.Entry<String, PendingVM>> it = pending.entrySet().iterator(); it.hasNext(); )
+			{
+				Map.Entry<String, PendingVM> e = it.next();
+				String vmId = e.getKey();
+				PendingVM vm = e.getValue();
+				String ip = vms == null ? null : getIP(vms, vmId);
+				if (validator.isValidInet4Address(ip))
+				{
+					LOGGER.logVM(vmId, Level.FINE, "Got IP address for VM %s: %s", vmId, ip);
+					vm.ip.set(ip);
+					it.remove();
+					progress = true;
+				}
+				else if (now > vm.deadline)
+				{
+					vm.ip.setException(new Exception("Failed to get IP for VM '" + vmId + "'"));
+					it.remove();
+				}
+			}
+			if (pending.isEmpty())
+			{
+				polling = false;
+				return 0;
+			}
+			if (progress)
+				interval = MIN_INTERVAL;
+			else
+				interval = Math.min(interval * 3 / 2, MAX_INTERVAL);
+			return interval;
+		}
+	}
+
+	private static String getIP(List<VMInfo> vms, String vmId)
+	{
+		for (VMInfo vmInfo : vms)
+		{
+			if (vmInfo.matches(vmId))
+				return vmInfo.getIP();
+		}
+		return null;
+	}
+
+	private synchronized void failAll(Exception ex)
+	{
+		for (PendingVM vm : pending.values())
+			vm.ip.setException(ex);
+		pending.clear();
+		polling = false;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.io.Serializable;
+
+
+// Fields of a 'prlctl list --json' entry the plugin cares about. Filled in on
+// the connector host, so only these values travel back to the master.
+final class VMInfo implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private String id;
+	private String name;
+	private String state;
+	private String ip;
+	private int cpus;
+	private long memSize = -1; // in bytes
+	private long videoSize = -1; // in bytes
+
+	String getId()
+	{
+		return id;
+	}
+
+	void setId(String id)
+	{
+		this.id = id;
+	}
+
+	String getName()
+	{
+		return name;
+	}
+
+	void setName(String name)
+	{
+		this.name = name;
+	}
+
+	String getState()
+	{
+		return state;
+	}
+
+	void setState(String state)
+	{
+		this.state = state;
+	}
+
+	String getIP()
+	{
+		return ip;
+	}
+
+	void setIP(String ip)
+	{
+		this.ip = ip;
+	}
+
+	int getCpus()
+	{
+		return cpus;
+	}
+
+	void setCpus(int cpus)
+	{
+		this.cpus = cpus;
+	}
+
+	long getMemSize()
+	{
+		return memSize;
+	}
+
+	void setMemSize(long memSize)
+	{
+		this.memSize = memSize;
+	}
+
+	long getVideoSize()
+	{
+		return videoSize;
+	}
+
+	void setVideoSize(long videoSize)
+	{
+		this.videoSize = videoSize;
+	}
+
+	boolean hasHardwareInfo()
+	{
+		return memSize >= 0 && videoSize >= 0;
+	}
+
+	boolean matches(String vmId)
+	{
+		return vmId.equals(id) || vmId.equals(name);
+	}
+}
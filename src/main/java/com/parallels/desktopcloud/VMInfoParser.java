@@ -0,0 +1,316 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+
+// Streaming reader for the JSON printed by 'prlctl list --json'. It walks the
+// output once and keeps only the fields stored in VMInfo, so the full
+// document is never materialised.
+final class VMInfoParser
+{
+	private static final int MAX_DEPTH = 64;
+
+	private final Reader in;
+	private final List<String> path = new ArrayList<String>();
+	private final StringBuilder buf = new StringBuilder();
+	private int next = -2;
+
+	private VMInfoParser(Reader in)
+	{
+		this.in = in;
+	}
+
+	static List<VMInfo> parse(Reader in) throws IOException
+	{
+		return new VMInfoParser(in).parseList();
+	}
+
+	static long memSizeStringToLong(String memSize)
+	{
+		// XXX It is expected that memSize ends with "Mb"
+		return Long.parseLong(memSize.substring(0, memSize.length() - 2)) * (1 << 20);
+	}
+
+	private List<VMInfo> parseList() throws IOException
+	{
+		List<VMInfo> result = new ArrayList<VMInfo>();
+		if (peek() == -1)
+			return result;
+		expect('[');
+		if (peek() == ']')
+		{
+			read();
+			return result;
+		}
+		while (true)
+		{
+			VMInfo vm = new VMInfo();
+			if (peek() == '{')
+				parseObject(vm);
+			else
+				parseValue(null);
+			result.add(vm);
+			int c = read();
+			if (c == ']')
+				return result;
+			if (c != ',')
+				throw error(c);
+		}
+	}
+
+	private void parseObject(VMInfo vm) throws IOException
+	{
+		if (path.size() >= MAX_DEPTH)
+			throw new IOException("prlctl output is nested too deep");
+		expect('{');
+		if (peek() == '}')
+		{
+			read();
+			return;
+		}
+		while (true)
+		{
+			if (peek() != '"')
+				throw error(read());
+			String key = readString();
+			expect(':');
+			path.add(key);
+			parseValue(vm);
+			path.remove(path.size() - 1);
+			int c = read();
+			if (c == '}')
+				return;
+			if (c != ',')
+				throw error(c);
+		}
+	}
+
+	private void parseArray() throws IOException
+	{
+		expect('[');
+		if (peek() == ']')
+		{
+			read();
+			return;
+		}
+		while (true)
+		{
+			// Nothing inside arrays is projected, so skip their contents.
+			parseValue(null);
+			int c = read();
+			if (c == ']')
+				return;
+			if (c != ',')
+				throw error(c);
+		}
+	}
+
+	private void parseValue(VMInfo vm) throws IOException
+	{
+		int c = peek();
+		if (c == '{')
+		{
+			if (vm == null)
+				skipObject();
+			else
+				parseObject(vm);
+		}
+		else if (c == '[')
+			parseArray();
+		else if (c == '"')
+		{
+			String value = readString();
+			if (vm != null)
+				project(vm, value);
+		}
+		else
+		{
+			String value = readLiteral();
+			if (vm != null && !"null".equals(value))
+				project(vm, value);
+		}
+	}
+
+	private void skipObject() throws IOException
+	{
+		expect('{');
+		if (peek() == '}')
+		{
+			read();
+			return;
+		}
+		while (true)
+		{
+			readString();
+			expect(':');
+			parseValue(null);
+			int c = read();
+			if (c == '}')
+				return;
+			if (c != ',')
+				throw error(c);
+		}
+	}
+
+	private void project(VMInfo vm, String value)
+	{
+		if (path.size() == 1)
+		{
+			String key = path.get(0);
+			if ("ID".equals(key) || "uuid".equals(key))
+				vm.setId(value);
+			else if ("Name".equals(key) || "name".equals(key))
+				vm.setName(value);
+			else if ("State".equals(key) || "status".equals(key))
+				vm.setState(value);
+			else if ("ip_configured".equals(key))
+				vm.setIP(value);
+		}
+		else if (path.size() == 3 && "Hardware".equals(path.get(0)))
+		{
+			String device = path.get(1);
+			String key = path.get(2);
+			if ("cpu".equals(device) && "cpus".equals(key))
+				vm.setCpus(Integer.parseInt(value));
+			else if ("memory".equals(device) && "size".equals(key))
+				vm.setMemSize(memSizeStringToLong(value));
+			else if ("video".equals(device) && "size".equals(key))
+				vm.setVideoSize(memSizeStringToLong(value));
+		}
+	}
+
+	private String readString() throws IOException
+	{
+		expect('"');
+		buf.setLength(0);
+		while (true)
+		{
+			int c = in.read();
+			if (c == -1)
+				throw error(c);
+			if (c == '"')
+				return buf.toString();
+			if (c != '\\')
+			{
+				buf.append((char)c);
+				continue;
+			}
+			c = in.read();
+			switch (c)
+			{
+			case 'b':
+				buf.append('\b');
+				break;
+			case 'f':
+				buf.append('\f');
+				break;
+			case 'n':
+				buf.append('\n');
+				break;
+			case 'r':
+				buf.append('\r');
+				break;
+			case 't':
+				buf.append('\t');
+				break;
+			case 'u':
+				char[] hex = new char[4];
+				for (int i = 0; i < hex.length; i++)
+				{
+					int h = in.read();
+					if (h == -1)
+						throw error(h);
+					hex[i] = (char)h;
+				}
+				buf.append((char)Integer.parseInt(new String(hex), 16));
+				break;
+			case -1:
+				throw error(c);
+			default:
+				buf.append((char)c);
+			}
+		}
+	}
+
+	private String readLiteral() throws IOException
+	{
+		buf.setLength(0);
+		int c = peek();
+		while (c != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c))
+		{
+			buf.append((char)c);
+			next = -2;
+			c = peekRaw();
+		}
+		if (buf.length() == 0)
+			throw error(c);
+		return buf.toString();
+	}
+
+	private void expect(char expected) throws IOException
+	{
+		int c = read();
+		if (c != expected)
+			throw error(c);
+	}
+
+	private IOException error(int c)
+	{
+		if (c == -1)
+			return new IOException("Unexpected end of prlctl output");
+		return new IOException("Unexpected character '" + (char)c + "' in prlctl output");
+	}
+
+	// Next significant character, without consuming it.
+	private int peek() throws IOException
+	{
+		int c = peekRaw();
+		while (c != -1 && Character.isWhitespace(c))
+		{
+			next = -2;
+			c = peekRaw();
+		}
+		return c;
+	}
+
+	private int peekRaw() throws IOException
+	{
+		if (next == -2)
+			next = in.read();
+		return next;
+	}
+
+	private int read() throws IOException
+	{
+		int c = peek();
+		next = -2;
+		return c;
+	}
+}
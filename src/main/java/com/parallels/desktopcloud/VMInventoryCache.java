@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+// Snapshot of the host VM list shared by all callers of one connector.
+// Concurrent callers which find the snapshot stale wait for the same refresh
+// instead of running prlctl each on their own.
+abstract class VMInventoryCache
+{
+	// VM list together with the time its loading started; the list reflects
+	// the host at some moment after that time.
+	static final class Snapshot
+	{
+		final List<VMInfo> vms;
+		final long loadTime;
+
+		Snapshot(List<VMInfo> vms, long loadTime)
+		{
+			this.vms = vms;
+			this.loadTime = loadTime;
+		}
+	}
+
+	private final long ttl;
+	private final Object lock = new Object();
+	private Snapshot snapshot;
+	private Snapshot lastLoaded;
+	private long generation;
+	private FutureTask<Snapshot> refresh;
+
+	VMInventoryCache(long ttl)
+	{
+		this.ttl = ttl;
+	}
+
+	protected abstract List<VMInfo> load() throws Exception;
+
+	List<VMInfo> get() throws Exception
+	{
+		return getSnapshot(ttl).vms;
+	}
+
+	List<VMInfo> get(long maxAge) throws Exception
+	{
+		return getSnapshot(maxAge).vms;
+	}
+
+	Snapshot getSnapshot() throws Exception
+	{
+		return getSnapshot(ttl);
+	}
+
+	private Snapshot getSnapshot(long maxAge) throws Exception
+	{
+		FutureTask<Snapshot> task;
+		boolean owner = false;
+		synchronized (lock)
+		{
+			if (snapshot != null && System.currentTimeMillis() - snapshot.loadTime < maxAge)
+				return snapshot;
+			if (refresh == null)
+			{
+				refresh = newRefreshTask(generation);
+				owner = true;
+			}
+			task = refresh;
+		}
+		if (owner)
+			task.run();
+		try
+		{
+			return task.get();
+		}
+		catch (ExecutionException ex)
+		{
+			Throwable cause = ex.getCause();
+			if (cause instanceof Exception)
+				throw (Exception)cause;
+			throw ex;
+		}
+	}
+
+	// The last loaded snapshot, stale or invalidated as it may be, or null if
+	// nothing was loaded yet. Never runs prlctl.
+	Snapshot peek()
+	{
+		synchronized (lock)
+		{
+			return snapshot != null ? snapshot : lastLoaded;
+		}
+	}
+
+	void invalidate()
+	{
+		synchronized (lock)
+		{
+			snapshot = null;
+			refresh = null;
+			++generation;
+		}
+	}
+
+	private FutureTask<Snapshot> newRefreshTask(final long startGeneration)
+	{
+		return new FutureTask<Snapshot>(new Callable<Snapshot>()
+		{
+			@Override
+			public Snapshot call() throws Exception
+			{
+				Snapshot result = null;
+				try
+				{
+					long loadTime = System.currentTimeMillis();
+					result = new Snapshot(load(), loadTime);
+					return result;
+				}
+				finally
+				{
+					synchronized (lock)
+					{
+						if (result != null)
+							lastLoaded = result;
+						// Results of a refresh started before invalidate() are handed
+						// to the callers already waiting for it, but are not cached.
+						if (generation == startGeneration)
+						{
+							if (result != null)
+								snapshot = result;
+							refresh = null;
+						}
+					}
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.slaves.Cloud;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import jenkins.model.Jenkins;
+
+
+// VM slaves are ephemeral nodes, so Jenkins forgets them on restart while
+// their VMs keep running. Every VM slave holds a lease here, kept in
+// parallels-desktop-vms.xml, until its VM is released. After a restart the
+// clouds reconcile the leases with the host inventory and re-attach the VMs
+// which are still running. Leases of hosts which can't be asked yet are
+// kept and tried again by the host health work.
+final class VMLeaseStore
+{
+	private static final ParallelsLogger LOGGER = ParallelsLogger.getLogger("PDVMLeaseStore");
+	private static final String FILE_NAME = "parallels-desktop-vms.xml";
+	private static final VMLeaseStore INSTANCE = new VMLeaseStore();
+
+	private final Map<String, Lease> leases = new LinkedHashMap<String, Lease>();
+	private boolean loaded = false;
+
+	enum Reattach
+	{
+		Pending,
+		Running,
+		Done
+	}
+
+	static final class Lease
+	{
+		private final String cloud;
+		private final String host;
+		private final String slaveName;
+		private final String vmId;
+		private final String template;
+		private final ParallelsDesktopVM.VMStates prevVMState;
+		private final String ip;
+		// Null for leases read from the file, which are pending until reconciled.
+		private transient Reattach reattach;
+
+		Lease(String cloud, String host, ParallelsDesktopVM vm)
+		{
+			this.reattach = Reattach.Done;
+			this.cloud = cloud;
+			this.host = host;
+			this.slaveName = vm.getSlaveName();
+			this.vmId = vm.getVmid();
+			this.template = vm.isClone() ? vm.getTemplate().getVmid() : null;
+			this.prevVMState = vm.getLifecycle().getPrevVMState();
+			this.ip = vm.getLauncherIP();
+		}
+
+		String getCloud()
+		{
+			return cloud;
+		}
+
+		// Name of the cloud host the VM runs on, empty for the default one.
+		String getHost()
+		{
+			return host == null ? "" : host;
+		}
+
+		String getSlaveName()
+		{
+			return slaveName;
+		}
+
+		String getVmId()
+		{
+			return vmId;
+		}
+
+		// VM ID of the template a clone was made from, null for other VMs.
+		String getTemplate()
+		{
+			return template;
+		}
+
+		ParallelsDesktopVM.VMStates getPrevVMState()
+		{
+			return prevVMState == null ? ParallelsDesktopVM.VMStates.Suspended : prevVMState;
+		}
+
+		String getIP()
+		{
+			return ip;
+		}
+
+		private Reattach getReattach()
+		{
+			return reattach == null ? Reattach.Pending : reattach;
+		}
+	}
+
+	static VMLeaseStore get()
+	{
+		return INSTANCE;
+	}
+
+	private static XmlFile getFile()
+	{
+		return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.getInstance().getRootDir(), FILE_NAME));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void load()
+	{
+		if (loaded)
+			return;
+		loaded = true;
+		XmlFile file = getFile();
+		if (!file.exists())
+			return;
+		try
+		{
+			for (Lease lease : (List<Lease>)file.read())
+				leases.put(lease.getSlaveName(), lease);
+		}
+		catch (Exception ex)
+		{
+			LOGGER.log(Level.WARNING, "Error: %s\nFailed to read %s", ex, file);
+		}
+	}
+
+	private void save()
+	{
+		XmlFile file = getFile();
+		try
+		{
+			file.write(new ArrayList<Lease>(leases.values()));
+		}
+		catch (IOException ex)
+		{
+			LOGGER.log(Level.WARNING, "Error: %s\nFailed to write %s", ex, file);
+		}
+	}
+
+	synchronized void put(Lease lease)
+	{
+		load();
+		leases.put(lease.getSlaveName(), lease);
+		save();
+	}
+
+	synchronized void remove(String slaveName)
+	{
+		load();
+		if (leases.remove(slaveName) != null)
+			save();
+	}
+
+	// Leases of the cloud still waiting to be reconciled. They are handed out
+	// once, until given back by retryLater().
+	synchronized List<Lease> takePending(String cloud)
+	{
+		load();
+		List<Lease> result = new ArrayList<Lease>();
+		for (Lease lease : leases.values())
+		{
+			if (lease.getCloud().equals(cloud) && lease.getReattach() == Reattach.Pending)
+			{
+				lease.reattach = Reattach.Running;
+				result.add(lease);
+			}
+		}
+		return result;
+	}
+
+	synchronized void setReattached(Lease lease)
+	{
+		lease.reattach = Reattach.Done;
+	}
+
+	synchronized void retryLater(Lease lease)
+	{
+		lease.reattach = Reattach.Pending;
+	}
+
+	// Drops the leases of clouds which are gone from the configuration.
+	synchronized void retainClouds(List<String> clouds)
+	{
+		load();
+		boolean changed = false;
+		for (Lease lease : new ArrayList<Lease>(leases.values()))
+		{
+			if (clouds.contains(lease.getCloud()))
+				continue;
+			LOGGER.logVM(lease.getVmId(), Level.INFO, "Dropping lease of VM '%s': cloud '%s' is gone", lease.getVmId(), lease.getCloud());
+			leases.remove(lease.getSlaveName());
+			changed = true;
+		}
+		if (changed)
+			save();
+	}
+
+	@Initializer(after = InitMilestone.JOB_LOADED)
+	public static void reattachAll()
+	{
+		Computer.threadPoolForRemoting.submit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				List<String> names = new ArrayList<String>();
+				for (Cloud cloud : Jenkins.getInstance().clouds)
+				{
+					if (!(cloud instanceof ParallelsDesktopCloud))
+						continue;
+					names.add(cloud.name);
+					((ParallelsDesktopCloud)cloud).reattachVMs();
+				}
+				get().retainClouds(names);
+			}
+		});
+	}
+}
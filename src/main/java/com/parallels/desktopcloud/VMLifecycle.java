@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+
+// Lifecycle of one VM entry. Every thread which drives the VM forward does so
+// by a compare-and-set transition, so only one of the provisioner, remoting
+// and retention threads racing for the same VM can win each step.
+//
+//	Free/Failed -> Reserved -> Starting -> WaitingForIp -> Online
+//	Reserved, WaitingForIp, Online -> Releasing -> Free/Failed
+//	Starting -> Reserved (start failed, try another host)
+final class VMLifecycle
+{
+	enum State
+	{
+		Free,
+		Reserved,
+		Starting,
+		WaitingForIp,
+		Online,
+		Releasing,
+		Failed
+	}
+
+	private final AtomicReference<State> state = new AtomicReference<State>(State.Free);
+	// VM state found when the VM was started; written by the thread owning Starting.
+	private volatile ParallelsDesktopVM.VMStates prevVMState = ParallelsDesktopVM.VMStates.Suspended;
+
+	State get()
+	{
+		return state.get();
+	}
+
+	boolean transition(State from, State to)
+	{
+		return state.compareAndSet(from, to);
+	}
+
+	// Free or Failed -> Reserved.
+	boolean reserve()
+	{
+		while (true)
+		{
+			State s = state.get();
+			if (s != State.Free && s != State.Failed)
+				return false;
+			if (state.compareAndSet(s, State.Reserved))
+				return true;
+		}
+	}
+
+	// Reserved, WaitingForIp or Online -> Releasing. Only one caller may
+	// release the VM; a VM still being started can't be released.
+	boolean beginRelease()
+	{
+		while (true)
+		{
+			State s = state.get();
+			if (s != State.Reserved && s != State.WaitingForIp && s != State.Online)
+				return false;
+			if (state.compareAndSet(s, State.Releasing))
+				return true;
+		}
+	}
+
+	void finishRelease(boolean ok)
+	{
+		transition(State.Releasing, ok ? State.Free : State.Failed);
+	}
+
+	// The VM is taken by a build or on its way to one.
+	boolean isProvisioned()
+	{
+		State s = state.get();
+		return s == State.Reserved || s == State.Starting || s == State.WaitingForIp || s == State.Online;
+	}
+
+	boolean isBusy()
+	{
+		State s = state.get();
+		return s != State.Free && s != State.Failed;
+	}
+
+	ParallelsDesktopVM.VMStates getPrevVMState()
+	{
+		return prevVMState;
+	}
+
+	void setPrevVMState(ParallelsDesktopVM.VMStates prevVMState)
+	{
+		this.prevVMState = prevVMState;
+	}
+}
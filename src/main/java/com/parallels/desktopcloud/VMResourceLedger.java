@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+
+// Master-side bookkeeping of the CPU and RAM taken on one connector host.
+// VMs being started hold a reservation until their start is committed or
+// released, so concurrent starts can't overcommit the host. The running set
+// is rebuilt from the host inventory only once per RECONCILE_INTERVAL.
+// Capacity may be overcommitted by configurable ratios; the latest host load
+// sample then keeps starts away from a host which is already short of CPU or
+// memory.
+final class VMResourceLedger
+{
+	private static final ParallelsLogger LOGGER = ParallelsLogger.getLogger("PDVMResourceLedger");
+	static final long RECONCILE_INTERVAL = 60 * 1000;
+	private static final long HOST_RESERVED_RAM = 1 << 30; // +1Gb for host OS and apps
+	private static final long LOAD_MAX_AGE = 60 * 1000;
+	private static final long SWAP_GROWTH_LIMIT = 64 << 20; // per sample, the host is paging out
+
+	private final VMResources host;
+	private final Map<String, VMResources> reserved = new HashMap<String, VMResources>();
+	private final Map<String, VMResources> running = new HashMap<String, VMResources>();
+	// When running VMs were committed or tracked, to tell them from an older inventory.
+	private final Map<String, Long> accountedAt = new HashMap<String, Long>();
+	private final VMResources used = new VMResources(0, HOST_RESERVED_RAM);
+	private long reconcileTime = 0;
+	private double cpuOvercommit = 1.0;
+	private double ramOvercommit = 1.0;
+	private HostLoad load;
+	private long loadTime;
+	private boolean swapping;
+
+	VMResourceLedger(VMResources host)
+	{
+		this.host = host;
+	}
+
+	synchronized boolean isReconcileDue()
+	{
+		return System.currentTimeMillis() - reconcileTime >= RECONCILE_INTERVAL;
+	}
+
+	synchronized void setOvercommit(double cpuOvercommit, double ramOvercommit)
+	{
+		this.cpuOvercommit = cpuOvercommit;
+		this.ramOvercommit = ramOvercommit;
+	}
+
+	synchronized void updateLoad(HostLoad sample)
+	{
+		long prevSwap = load == null ? -1 : load.getUsedSwap();
+		swapping = prevSwap >= 0 && sample.getUsedSwap() - prevSwap > SWAP_GROWTH_LIMIT;
+		load = sample;
+		loadTime = System.currentTimeMillis();
+		LOGGER.log(Level.FINE, "Host load: %s%s", sample.toLogString(), swapping ? ", swapping" : "");
+	}
+
+	private VMResources getCapacity()
+	{
+		return new VMResources((int)(host.cpus * cpuOvercommit), (long)(host.ram * ramOvercommit));
+	}
+
+	private boolean checkLoad(VMResources vm)
+	{
+		if (load == null || System.currentTimeMillis() - loadTime > LOAD_MAX_AGE)
+			return true;
+		if (swapping)
+		{
+			LOGGER.log(Level.FINE, "Host is swapping");
+			return false;
+		}
+		double loadAverage = load.getLoadAverage();
+		if (loadAverage >= 0 && loadAverage + vm.cpus > host.cpus * cpuOvercommit)
+		{
+			LOGGER.log(Level.FINE, "Exceeding CPU load: vm=%d load=%.2f host=%d", vm.cpus, loadAverage, host.cpus);
+			return false;
+		}
+		// Without RAM overcommit the accounting alone keeps VMs within physical memory.
+		if (ramOvercommit > 1.0 && load.getFreeRam() >= 0 && vm.ram > load.getFreeRam())
+		{
+			LOGGER.log(Level.FINE, "Not enough free RAM: vm=%d free=%d", vm.ram, load.getFreeRam());
+			return false;
+		}
+		return true;
+	}
+
+	synchronized boolean reserve(String vmId, VMResources vm)
+	{
+		if (reserved.containsKey(vmId) || running.containsKey(vmId))
+			return true;
+		if (!VMResources.check(getCapacity(), used, vm) || !checkLoad(vm))
+			return false;
+		reserved.put(vmId, vm);
+		used.append(vm);
+		return true;
+	}
+
+	synchronized void commit(String vmId)
+	{
+		VMResources vm = reserved.remove(vmId);
+		if (vm != null)
+		{
+			running.put(vmId, vm);
+			accountedAt.put(vmId, System.currentTimeMillis());
+		}
+	}
+
+	// Accounts a VM which was found running without a reservation.
+	synchronized void track(String vmId, VMResources vm)
+	{
+		if (reserved.containsKey(vmId) || running.containsKey(vmId))
+			return;
+		running.put(vmId, vm);
+		accountedAt.put(vmId, System.currentTimeMillis());
+		used.append(vm);
+	}
+
+	synchronized void release(String vmId)
+	{
+		VMResources vm = reserved.remove(vmId);
+		if (vm == null)
+			vm = running.remove(vmId);
+		accountedAt.remove(vmId);
+		if (vm != null)
+			used.subtract(vm);
+	}
+
+	// Rebuilds the running set from an inventory whose loading started at
+	// inventoryTime. VMs committed or tracked since then may be missing from
+	// it, so they are kept as they are.
+	synchronized void reconcile(List<VMInfo> inventory, long inventoryTime)
+	{
+		Set<String> knownIds = new HashSet<String>(running.keySet());
+		knownIds.addAll(reserved.keySet());
+		Map<String, VMResources> recent = new HashMap<String, VMResources>();
+		for (Map.Entry<String, VMResources> e : running.entrySet())
+		{
+			Long time = accountedAt.get(e.getKey());
+			if (time != null && time >= inventoryTime)
+				recent.put(e.getKey(), e.getValue());
+		}
+		running.clear();
+		running.putAll(recent);
+		used.cpus = 0;
+		used.ram = HOST_RESERVED_RAM;
+		for (VMResources vm : reserved.values())
+			used.append(vm);
+		for (VMResources vm : recent.values())
+			used.append(vm);
+		for (VMInfo vmInfo : inventory)
+		{
+			String vmStatus = vmInfo.getState();
+			if ("stopped".equals(vmStatus) || "suspended".equals(vmStatus) || "invalid".equals(vmStatus))
+				continue;
+			String vmId = vmInfo.getId();
+			for (String knownId : knownIds)
+			{
+				if (vmInfo.matches(knownId))
+					vmId = knownId;
+			}
+			if (reserved.containsKey(vmId) || running.containsKey(vmId))
+				continue;
+			LOGGER.log(Level.FINE , "Accounting VM '%s'", vmInfo.getName());
+			VMResources vm = VMResources.fromVMInfo(vmInfo);
+			running.put(vmId, vm);
+			used.append(vm);
+		}
+		accountedAt.keySet().retainAll(running.keySet());
+		reconcileTime = System.currentTimeMillis();
+		LOGGER.log(Level.FINE, "Reconciled host resources: used %s of %s", used.toLogString(), host.toLogString());
+	}
+
+	// Headroom left on the host after starting the VM, as a sum of the CPU and
+	// RAM fractions, or null when the VM doesn't fit.
+	synchronized Double getFitScore(VMResources vm)
+	{
+		VMResources capacity = getCapacity();
+		if (vm.cpus + used.cpus > capacity.cpus || vm.ram + used.ram > capacity.ram || !checkLoad(vm))
+			return null;
+		double cpuLeft = (double)(capacity.cpus - used.cpus - vm.cpus) / Math.max(capacity.cpus, 1);
+		double ramLeft = (double)(capacity.ram - used.ram - vm.ram) / Math.max(capacity.ram, 1);
+		return cpuLeft + ramLeft;
+	}
+
+	synchronized VMResources getUsed()
+	{
+		return new VMResources(used.cpus, used.ram);
+	}
+
+	VMResources getHost()
+	{
+		return host;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.io.Serializable;
+import java.util.logging.Level;
+
+
+final class VMResources implements Serializable
+{
+	private static final ParallelsLogger LOGGER = ParallelsLogger.getLogger("PDVMResources");
+	private static final long serialVersionUID = 1L;
+	public int cpus;
+	public long ram; // in bytes
+	private static final long mb = 1 << 20;
+	public VMResources(int cpus, long ram)
+	{
+		this.cpus = cpus;
+		this.ram = ram;
+	}
+	static VMResources fromVMInfo(VMInfo vmInfo)
+	{
+		int cpus = vmInfo.getCpus();
+		long ram = Math.max(vmInfo.getMemSize(), 0);
+		ram += Math.max(vmInfo.getVideoSize(), 0);
+		ram += 500 * mb; // +500Mb for each VM for virtualization overhead
+		return new VMResources(cpus, ram);
+	}
+	public void append(VMResources newResources)
+	{
+		cpus += newResources.cpus;
+		ram += newResources.ram;
+	}
+	public void subtract(VMResources resources)
+	{
+		cpus -= resources.cpus;
+		ram -= resources.ram;
+	}
+	public static boolean check(VMResources host, VMResources used, VMResources vm)
+	{
+		if ((vm.cpus + used.cpus) > host.cpus)
+		{
+			LOGGER.log(Level.FINE, "Exceeding CPU limit: vm=%d used=%d host=%d",
+					vm.cpus, used.cpus, host.cpus);
+			return false;
+		}
+		if ((vm.ram + used.ram) > host.ram)
+		{
+			LOGGER.log(Level.FINE, "Exceeding RAM limit (Mb): vm=%d used=%d host=%d",
+					vm.ram / mb, used.ram / mb, host.ram / mb);
+			return false;
+		}
+		return true;
+	}
+	public String toLogString()
+	{
+		return String.format("CPU=%d RAM=%d", cpus, ram);
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+
+// Releases VM slaves of one connector host in the background: disconnect the
+// agent, run the post-build action and give the VM back to the cloud. At
+// most MAX_PARALLEL_TEARDOWNS run at once, so a burst of suspends doesn't
+// saturate the host disk, and nobody else waits for a slow one.
+final class VMTeardownPipeline
+{
+	private static final ParallelsLogger LOGGER = ParallelsLogger.getLogger("PDVMTeardownPipeline");
+	private static final int MAX_PARALLEL_TEARDOWNS = 2;
+	private static final long DISCONNECT_TIMEOUT = 60 * 1000;
+
+	enum Stage
+	{
+		Queued,
+		Disconnecting,
+		Stopping
+	}
+
+	private final ExecutorService executor;
+	private final ConcurrentMap<String, Stage> inProgress = new ConcurrentHashMap<String, Stage>();
+
+	VMTeardownPipeline(String hostName)
+	{
+		executor = Executors.newFixedThreadPool(MAX_PARALLEL_TEARDOWNS,
+				new NamingThreadFactory(new DaemonThreadFactory(), "Parallels Desktop teardown for " + hostName));
+	}
+
+	// Returns false if the slave is already being released or the pipeline
+	// has been shut down.
+	boolean submit(final ParallelsDesktopVMSlaveComputer c)
+	{
+		final String name = c.getName();
+		if (inProgress.putIfAbsent(name, Stage.Queued) != null)
+			return false;
+		c.setAcceptingTasks(false);
+		try
+		{
+			executor.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						teardown(name, c);
+					}
+					finally
+					{
+						inProgress.remove(name);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException ex)
+		{
+			// The connector is going away and its slaves with it.
+			LOGGER.log(Level.WARNING, "Teardown of %s rejected: %s", name, ex);
+			inProgress.remove(name);
+			c.setAcceptingTasks(true);
+			return false;
+		}
+		return true;
+	}
+
+	private void teardown(String name, ParallelsDesktopVMSlaveComputer c)
+	{
+		long start = System.currentTimeMillis();
+		try
+		{
+			inProgress.put(name, Stage.Disconnecting);
+			LOGGER.log(Level.FINE, "Disconnecting computer %s...", name);
+			c.disconnect(null).get(DISCONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch (Exception e)
+		{
+			LOGGER.log(Level.WARNING, "Error: %s\nFailed to disconnect %s cleanly", e, name);
+		}
+		try
+		{
+			inProgress.put(name, Stage.Stopping);
+			ParallelsDesktopVMSlave slave = c.getNode();
+			if (slave != null)
+				slave.terminate();
+			ParallelsDesktopMetrics.get().record(ParallelsDesktopMetrics.TEARDOWN, start);
+		}
+		catch (Exception e)
+		{
+			ParallelsDesktopMetrics.get().recordError(ParallelsDesktopMetrics.TEARDOWN);
+			LOGGER.log(Level.WARNING, "Error: %s", e);
+		}
+	}
+
+	Stage getStage(String name)
+	{
+		return inProgress.get(name);
+	}
+
+	void shutdown()
+	{
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class ConnectorHealthTest
+{
+	@Test
+	public void availableUntilFailure()
+	{
+		ConnectorHealth health = new ConnectorHealth("mac1");
+		assertTrue(health.isAvailable());
+		assertFalse(health.claimReconnect());
+		health.onFailure("ping timed out");
+		assertFalse(health.isAvailable());
+	}
+
+	@Test
+	public void reconnectWaitsForBackoff()
+	{
+		ConnectorHealth health = new ConnectorHealth("mac1");
+		health.onFailure("ping timed out");
+		assertFalse(health.claimReconnect());
+	}
+
+	@Test
+	public void successRestoresAvailability()
+	{
+		ConnectorHealth health = new ConnectorHealth("mac1");
+		health.onFailure("ping timed out");
+		health.onFailure("connection refused");
+		health.onSuccess();
+		assertTrue(health.isAvailable());
+		assertFalse(health.claimReconnect());
+	}
+
+	@Test
+	public void unavailableNamesHostAndError()
+	{
+		ConnectorHealth health = new ConnectorHealth("mac1");
+		health.onFailure("connection refused");
+		String message = health.unavailable().getMessage();
+		assertTrue(message, message.contains("mac1"));
+		assertTrue(message, message.contains("connection refused"));
+		assertTrue(message, message.contains("next reconnect in 5 s") || message.contains("next reconnect in 4 s"));
+	}
+
+	@Test
+	public void backoffGrowsWithFailures()
+	{
+		ConnectorHealth health = new ConnectorHealth("mac1");
+		for (int i = 0; i < 3; i++)
+			health.onFailure("connection refused");
+		// The third failure in a row waits 4 times the first backoff.
+		String message = health.unavailable().getMessage();
+		assertTrue(message, message.contains("in 20 s") || message.contains("in 19 s"));
+		for (int i = 0; i < 20; i++)
+			health.onFailure("connection refused");
+		message = health.unavailable().getMessage();
+		assertTrue(message, message.contains("in 300 s") || message.contains("in 299 s"));
+	}
+}
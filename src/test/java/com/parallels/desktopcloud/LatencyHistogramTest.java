@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class LatencyHistogramTest
+{
+	@Test
+	public void emptyHistogram()
+	{
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getMean());
+		assertEquals(0, h.getMax());
+		assertEquals(0, h.getPercentile(0.99));
+	}
+
+	@Test
+	public void countMeanAndMax()
+	{
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(10);
+		h.record(20);
+		h.record(90);
+		h.recordError();
+		assertEquals(3, h.getCount());
+		assertEquals(1, h.getErrors());
+		assertEquals(40, h.getMean());
+		assertEquals(90, h.getMax());
+	}
+
+	@Test
+	public void negativeLatencyCountsAsZero()
+	{
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(-5);
+		assertEquals(1, h.getCount());
+		assertEquals(0, h.getMax());
+		assertEquals(0, h.getPercentile(0.5));
+	}
+
+	@Test
+	public void percentilesAreBucketUpperBounds()
+	{
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 0; i < 99; i++)
+			h.record(100);
+		h.record(5000);
+		// 100 ms falls into the 64..127 bucket.
+		assertEquals(127, h.getPercentile(0.5));
+		assertEquals(127, h.getPercentile(0.99));
+		assertEquals(5000, h.getPercentile(1.0));
+	}
+
+	@Test
+	public void percentileNeverExceedsMax()
+	{
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(65);
+		assertEquals(65, h.getPercentile(0.5));
+	}
+
+	@Test
+	public void hugeLatenciesGoToTheLastBucket()
+	{
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(Long.MAX_VALUE / 2);
+		assertEquals(1, h.getCount());
+		assertEquals(Long.MAX_VALUE / 2, h.getMax());
+		assertEquals((1L << 39) - 1, h.getPercentile(0.5));
+	}
+
+	@Test
+	public void concurrentRecordsAreAllCounted() throws Exception
+	{
+		final LatencyHistogram h = new LatencyHistogram();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++)
+		{
+			final int base = t;
+			threads.add(new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < 10000; i++)
+						h.record(base * 1000 + i % 1000);
+				}
+			});
+		}
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		assertEquals(80000, h.getCount());
+		assertEquals(7999, h.getMax());
+		assertTrue(h.getPercentile(0.5) <= h.getPercentile(0.99));
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import hudson.model.Action;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class ParallelsDesktopVMEventsActionTest
+{
+	private static final ParallelsLogger LOGGER = ParallelsLogger.getLogger("PDVMEventsActionTest");
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Before
+	public void setUp()
+	{
+		SimulatedPrlctl.Options options = new SimulatedPrlctl.Options();
+		options.bootMillis = 100;
+		options.ipDelayMillis = 100;
+		final SimulatedPrlctl host = new SimulatedPrlctl(options);
+		host.addVM("vm1", 2, 2048);
+		ParallelsDesktopConnectorSlaveComputer.prlctlFactory = new ParallelsDesktopConnectorSlaveComputer.PrlctlFactory()
+		{
+			@Override
+			public PrlctlService create(String hostName)
+			{
+				return host;
+			}
+
+			@Override
+			public VMResources getHostResources(String hostName)
+			{
+				return new VMResources(host.getOptions().hostCpus, host.getOptions().hostRamMb << 20);
+			}
+		};
+	}
+
+	@After
+	public void tearDown()
+	{
+		ParallelsDesktopConnectorSlaveComputer.prlctlFactory = null;
+	}
+
+	// Runs a build on the VM of a simulated cloud and returns its slave, which
+	// stays online until it has been idle for a while.
+	private ParallelsDesktopVMSlaveComputer provisionVmSlave() throws Exception
+	{
+		ParallelsDesktopVM vm = new ParallelsDesktopVM("vm1", "events-vm", j.createTmpDir().getPath(),
+				j.createComputerLauncher(null), ParallelsDesktopVM.PostBuildBehaviors.Suspend.name(),
+				new ParallelsDesktopNodeProperties());
+		j.jenkins.clouds.add(new ParallelsDesktopCloud("events", "events-host", j.createTmpDir().getPath(),
+				j.createComputerLauncher(null), false, Collections.singletonList(vm)));
+		FreeStyleProject p = j.createFreeStyleProject();
+		p.setAssignedLabel(j.jenkins.getLabel("events-vm"));
+		j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+		for (Node n : j.jenkins.getNodes())
+		{
+			if (n instanceof ParallelsDesktopVMSlave)
+				return (ParallelsDesktopVMSlaveComputer)n.toComputer();
+		}
+		throw new AssertionError("No VM slave");
+	}
+
+	private static ParallelsDesktopVMEventsAction getEventsAction(ParallelsDesktopVMSlaveComputer c)
+	{
+		for (Action a : c.getActions())
+		{
+			if (a instanceof ParallelsDesktopVMEventsAction)
+				return (ParallelsDesktopVMEventsAction)a;
+		}
+		return null;
+	}
+
+	@Test
+	public void eventsPageIsShownOnVmSlaves() throws Exception
+	{
+		ParallelsDesktopVMSlaveComputer c = provisionVmSlave();
+		ParallelsDesktopVMEventsAction action = getEventsAction(c);
+		assertNotNull(action);
+		assertNotNull(action.getIconFileName());
+		String page = j.createWebClient().getPage(c, action.getUrlName()).asText();
+		assertTrue(page, page.contains("Slave " + c.getName() + " provisioned."));
+	}
+
+	@Test
+	public void eventsKeepArgumentsAsLogged()
+	{
+		StringBuilder state = new StringBuilder("starting");
+		LOGGER.logVM("events-vm", Level.INFO, "VM is %s", state);
+		state.setLength(0);
+		state.append("stopped");
+		List<ParallelsLogger.Event> events = ParallelsLogger.getEvents("events-vm");
+		assertEquals(1, events.size());
+		assertEquals("VM is starting", events.get(0).getText());
+		ParallelsLogger.discardEvents("events-vm");
+	}
+}
@@ -0,0 +1,306 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.queue.QueueTaskFuture;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.recipes.WithTimeout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+// Drives ParallelsDesktopCloud against simulated hosts with bursts of builds,
+// through provision(), placement, admission, the VM lifecycle and the
+// teardown pipeline. The hosts must never be overcommitted and every VM must
+// be free again once its slave is gone.
+public class ProvisioningLoadTest
+{
+	static
+	{
+		// Let the provisioner react within seconds instead of tens of seconds.
+		System.setProperty("hudson.model.LoadStatistics.clock", "1000");
+		System.setProperty("hudson.slaves.NodeProvisioner.initialDelay", "1000");
+		System.setProperty("hudson.slaves.NodeProvisioner.recurrencePeriod", "1000");
+	}
+
+	private static final String CLOUD_NAME = "sim";
+	private static final String LABEL = "sim-vm";
+	private static final int VM_CPUS = 2;
+	private static final long VM_RAM_MB = 2048;
+	private static final long SETTLE_TIMEOUT = 120 * 1000;
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	// Simulated hosts by connector name.
+	private final Map<String, SimulatedPrlctl> hosts = new HashMap<String, SimulatedPrlctl>();
+
+	@Before
+	public void setUp()
+	{
+		ParallelsDesktopConnectorSlaveComputer.prlctlFactory = new ParallelsDesktopConnectorSlaveComputer.PrlctlFactory()
+		{
+			@Override
+			public PrlctlService create(String hostName) throws Exception
+			{
+				return getHost(hostName);
+			}
+
+			@Override
+			public VMResources getHostResources(String hostName) throws Exception
+			{
+				SimulatedPrlctl.Options options = getHost(hostName).getOptions();
+				return new VMResources(options.hostCpus, options.hostRamMb << 20);
+			}
+		};
+	}
+
+	@After
+	public void tearDown()
+	{
+		ParallelsDesktopConnectorSlaveComputer.prlctlFactory = null;
+	}
+
+	private synchronized SimulatedPrlctl getHost(String connectorName) throws Exception
+	{
+		SimulatedPrlctl host = hosts.get(connectorName);
+		if (host == null)
+			throw new Exception("No simulated host for connector '" + connectorName + "'");
+		return host;
+	}
+
+	private synchronized SimulatedPrlctl addHost(String connectorName, int cpus, double startFailureRate, int vmCount)
+	{
+		SimulatedPrlctl.Options options = new SimulatedPrlctl.Options();
+		options.bootMillis = 300;
+		options.resumeMillis = 100;
+		options.suspendMillis = 100;
+		options.stopMillis = 100;
+		options.ipDelayMillis = 200;
+		options.listMillis = 10;
+		options.hostCpus = cpus;
+		options.hostRamMb = 16 * 1024;
+		options.startFailureRate = startFailureRate;
+		SimulatedPrlctl host = new SimulatedPrlctl(options);
+		for (int i = 1; i <= vmCount; i++)
+			host.addVM("vm" + i, VM_CPUS, VM_RAM_MB);
+		hosts.put(connectorName, host);
+		return host;
+	}
+
+	private ParallelsDesktopCloud addCloud(int vmCount, List<ParallelsDesktopHost> extraHosts) throws Exception
+	{
+		return addCloud(vmCount, 1, extraHosts);
+	}
+
+	// Lists each VM ID 'copies' times, so that it may run on as many hosts at
+	// once.
+	private ParallelsDesktopCloud addCloud(int vmCount, int copies, List<ParallelsDesktopHost> extraHosts)
+			throws Exception
+	{
+		List<ParallelsDesktopVM> vms = new ArrayList<ParallelsDesktopVM>();
+		for (int i = 1; i <= vmCount * copies; i++)
+		{
+			ParallelsDesktopVM vm = new ParallelsDesktopVM("vm" + ((i - 1) % vmCount + 1), LABEL, j.createTmpDir().getPath(),
+					j.createComputerLauncher(null), ParallelsDesktopVM.PostBuildBehaviors.Suspend.name(),
+					new ParallelsDesktopNodeProperties());
+			vm.setOneShot(true);
+			vms.add(vm);
+		}
+		ParallelsDesktopCloud cloud = new ParallelsDesktopCloud(CLOUD_NAME, "sim-host", j.createTmpDir().getPath(),
+				j.createComputerLauncher(null), false, vms);
+		cloud.setHosts(extraHosts);
+		j.jenkins.clouds.add(cloud);
+		return cloud;
+	}
+
+	private List<QueueTaskFuture<FreeStyleBuild>> scheduleBuilds(int count) throws Exception
+	{
+		List<QueueTaskFuture<FreeStyleBuild>> builds = new ArrayList<QueueTaskFuture<FreeStyleBuild>>();
+		for (int i = 0; i < count; i++)
+		{
+			FreeStyleProject p = j.createFreeStyleProject();
+			p.setAssignedLabel(j.jenkins.getLabel(LABEL));
+			builds.add(p.scheduleBuild2(0));
+		}
+		return builds;
+	}
+
+	// Waits for the teardown of all one-shot VM slaves and checks that their
+	// VMs went back to the cloud.
+	private void assertAllReleased(ParallelsDesktopCloud cloud) throws Exception
+	{
+		long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT;
+		while (hasVmSlaves() && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+		assertFalse("VM slaves left", hasVmSlaves());
+		for (ParallelsDesktopVM vm : cloud.getVms())
+		{
+			deadline = System.currentTimeMillis() + SETTLE_TIMEOUT;
+			while (vm.getLifecycle().isBusy() && System.currentTimeMillis() < deadline)
+				Thread.sleep(100);
+			assertFalse("VM " + vm.getVmid() + " still busy", vm.getLifecycle().isBusy());
+		}
+	}
+
+	private boolean hasVmSlaves()
+	{
+		for (Node n : j.jenkins.getNodes())
+		{
+			if (n instanceof ParallelsDesktopVMSlave)
+				return true;
+		}
+		return false;
+	}
+
+	@Test
+	public void burstOnOneHostStaysWithinCapacity() throws Exception
+	{
+		// Room for two VMs at a time on a host with four of them.
+		SimulatedPrlctl host = addHost(CLOUD_NAME + " host slave", 2 * VM_CPUS, 0.0, 4);
+		ParallelsDesktopCloud cloud = addCloud(4, null);
+		long teardowns = ParallelsDesktopMetrics.get().histogram(ParallelsDesktopMetrics.TEARDOWN).getCount();
+
+		for (QueueTaskFuture<FreeStyleBuild> build : scheduleBuilds(6))
+			j.assertBuildStatusSuccess(build);
+		assertAllReleased(cloud);
+
+		assertEquals(0, host.getOvercommitViolations());
+		assertTrue(host.getStartCalls() >= 6);
+		assertTrue(ParallelsDesktopMetrics.get().histogram(ParallelsDesktopMetrics.TEARDOWN).getCount() - teardowns >= 6);
+	}
+
+	@Test
+	public void failedStartsAreRetried() throws Exception
+	{
+		SimulatedPrlctl host = addHost(CLOUD_NAME + " host slave", 2 * VM_CPUS, 0.3, 4);
+		ParallelsDesktopCloud cloud = addCloud(4, null);
+
+		for (QueueTaskFuture<FreeStyleBuild> build : scheduleBuilds(4))
+			j.assertBuildStatusSuccess(build);
+		assertAllReleased(cloud);
+
+		assertEquals(0, host.getOvercommitViolations());
+		assertTrue(host.getStartCalls() >= 4 + host.getFailedStarts());
+	}
+
+	@Test
+	public void burstIsPlacedOnAllHosts() throws Exception
+	{
+		// Each host has room for a single VM, so a burst needs both of them.
+		SimulatedPrlctl host1 = addHost(CLOUD_NAME + " host slave", VM_CPUS, 0.0, 4);
+		SimulatedPrlctl host2 = addHost(CLOUD_NAME + " host slave h2", VM_CPUS, 0.0, 4);
+		List<ParallelsDesktopHost> extraHosts = new ArrayList<ParallelsDesktopHost>();
+		extraHosts.add(new ParallelsDesktopHost("h2", "sim-host", j.createTmpDir().getPath(),
+				j.createComputerLauncher(null), false));
+		ParallelsDesktopCloud cloud = addCloud(4, extraHosts);
+
+		for (QueueTaskFuture<FreeStyleBuild> build : scheduleBuilds(6))
+			j.assertBuildStatusSuccess(build);
+		assertAllReleased(cloud);
+
+		assertEquals(0, host1.getOvercommitViolations());
+		assertEquals(0, host2.getOvercommitViolations());
+		assertTrue(host1.getStartCalls() > 0);
+		assertTrue(host2.getStartCalls() > 0);
+	}
+
+	// Hundreds of builds on several hosts with failing starts. Reports the
+	// throughput, the percentiles of the time from scheduling a build to its
+	// start and the overcommit violations. Scale it with
+	// -Dprovisioning.load.builds, -Dprovisioning.load.hosts and
+	// -Dprovisioning.load.failureRate.
+	@Test
+	@WithTimeout(30 * 60)
+	public void highVolumeBurstOnSeveralHosts() throws Exception
+	{
+		int buildCount = Integer.getInteger("provisioning.load.builds", 300);
+		int hostCount = Integer.getInteger("provisioning.load.hosts", 3);
+		double failureRate = Double.parseDouble(System.getProperty("provisioning.load.failureRate", "0.05"));
+		int vmsPerHost = 6;
+
+		// Room for four of the six VMs on each host.
+		List<SimulatedPrlctl> simHosts = new ArrayList<SimulatedPrlctl>();
+		simHosts.add(addHost(CLOUD_NAME + " host slave", 4 * VM_CPUS, failureRate, vmsPerHost));
+		List<ParallelsDesktopHost> extraHosts = new ArrayList<ParallelsDesktopHost>();
+		for (int i = 2; i <= hostCount; i++)
+		{
+			simHosts.add(addHost(CLOUD_NAME + " host slave h" + i, 4 * VM_CPUS, failureRate, vmsPerHost));
+			extraHosts.add(new ParallelsDesktopHost("h" + i, "sim-host", j.createTmpDir().getPath(),
+					j.createComputerLauncher(null), false));
+		}
+		ParallelsDesktopCloud cloud = addCloud(vmsPerHost, hostCount, extraHosts);
+
+		List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+		for (int i = 0; i < buildCount; i++)
+		{
+			FreeStyleProject p = j.createFreeStyleProject();
+			p.setAssignedLabel(j.jenkins.getLabel(LABEL));
+			projects.add(p);
+		}
+		LatencyHistogram waits = new LatencyHistogram();
+		long start = System.currentTimeMillis();
+		List<QueueTaskFuture<FreeStyleBuild>> builds = new ArrayList<QueueTaskFuture<FreeStyleBuild>>();
+		for (FreeStyleProject p : projects)
+			builds.add(p.scheduleBuild2(0));
+		for (QueueTaskFuture<FreeStyleBuild> build : builds)
+		{
+			FreeStyleBuild b = j.assertBuildStatusSuccess(build);
+			waits.record(b.getStartTimeInMillis() - start);
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		assertAllReleased(cloud);
+
+		int violations = 0;
+		int startCalls = 0;
+		int failedStarts = 0;
+		for (SimulatedPrlctl host : simHosts)
+		{
+			violations += host.getOvercommitViolations();
+			startCalls += host.getStartCalls();
+			failedStarts += host.getFailedStarts();
+		}
+		System.out.println(String.format("%d builds on %d hosts in %d ms: %.2f builds/s; "
+				+ "wait for start p50=%d p95=%d p99=%d max=%d ms; %d VM starts, %d failed; %d overcommit violations",
+				buildCount, hostCount, elapsed, buildCount * 1000.0 / Math.max(elapsed, 1),
+				waits.getPercentile(0.5), waits.getPercentile(0.95), waits.getPercentile(0.99), waits.getMax(),
+				startCalls, failedStarts, violations));
+		assertEquals(0, violations);
+		assertTrue(startCalls >= buildCount + failedStarts);
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+// In-memory prlctl host. Keeps VM state, sleeps for configurable boot,
+// resume and suspend latencies, hands out IPs after a delay and fails a
+// share of the starts. Counts starts that push the running VMs past the
+// host capacity, which the plugin's admission control must never allow.
+final class SimulatedPrlctl implements PrlctlService
+{
+	static final class Options
+	{
+		long bootMillis = 3000;
+		long resumeMillis = 800;
+		long suspendMillis = 500;
+		long stopMillis = 1000;
+		long ipDelayMillis = 2000;
+		long listMillis = 50;
+		double startFailureRate = 0.0;
+		int hostCpus = 8;
+		long hostRamMb = 16 * 1024;
+		long seed = 1;
+	}
+
+	private static final class SimVM
+	{
+		final String id = "{" + UUID.randomUUID() + "}";
+		final String name;
+		int cpus;
+		long memMb;
+		String state = "stopped";
+		String ip;
+		long ipReadyAt;
+
+		SimVM(String name, int cpus, long memMb)
+		{
+			this.name = name;
+			this.cpus = cpus;
+			this.memMb = memMb;
+		}
+
+		boolean matches(String vmId)
+		{
+			return id.equals(vmId) || name.equals(vmId);
+		}
+	}
+
+	private final Options options;
+	private final Random random;
+	private final Map<String, SimVM> vms = new LinkedHashMap<String, SimVM>();
+	private final AtomicInteger listCalls = new AtomicInteger();
+	private final AtomicInteger startCalls = new AtomicInteger();
+	private final AtomicInteger failedStarts = new AtomicInteger();
+	private final AtomicInteger overcommitViolations = new AtomicInteger();
+	private int nextIp = 2;
+
+	SimulatedPrlctl(Options options)
+	{
+		this.options = options;
+		this.random = new Random(options.seed);
+	}
+
+	Options getOptions()
+	{
+		return options;
+	}
+
+	synchronized void addVM(String name, int cpus, long memMb)
+	{
+		vms.put(name, new SimVM(name, cpus, memMb));
+	}
+
+	int getListCalls()
+	{
+		return listCalls.get();
+	}
+
+	int getStartCalls()
+	{
+		return startCalls.get();
+	}
+
+	int getFailedStarts()
+	{
+		return failedStarts.get();
+	}
+
+	int getOvercommitViolations()
+	{
+		return overcommitViolations.get();
+	}
+
+	private SimVM find(String vmId) throws PrlctlServer.PrlCtlFailedException
+	{
+		for (SimVM vm : vms.values())
+		{
+			if (vm.matches(vmId))
+				return vm;
+		}
+		throw new PrlctlServer.PrlCtlFailedException(255, "Failed to get VM config: The virtual machine could not be found.");
+	}
+
+	private static void sleep(long millis) throws InterruptedException
+	{
+		if (millis > 0)
+			Thread.sleep(millis);
+	}
+
+	@Override
+	public List<VMInfo> list(String... args) throws Exception
+	{
+		listCalls.incrementAndGet();
+		sleep(options.listMillis);
+		boolean full = Arrays.asList(args).contains("-i");
+		List<VMInfo> result = new ArrayList<VMInfo>();
+		synchronized (this)
+		{
+			long now = System.currentTimeMillis();
+			for (SimVM vm : vms.values())
+			{
+				VMInfo info = new VMInfo();
+				info.setId(vm.id);
+				info.setName(vm.name);
+				info.setState(vm.state);
+				if (full)
+				{
+					info.setCpus(vm.cpus);
+					info.setMemSize(vm.memMb << 20);
+				}
+				else if ("running".equals(vm.state) && now >= vm.ipReadyAt)
+					info.setIP(vm.ip);
+				result.add(info);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public String start(String vmId) throws Exception
+	{
+		startCalls.incrementAndGet();
+		String prevState;
+		synchronized (this)
+		{
+			SimVM vm = find(vmId);
+			prevState = vm.state;
+			if ("running".equals(prevState))
+				return "The VM is already running.";
+		}
+		sleep("suspended".equals(prevState) || "paused".equals(prevState) ? options.resumeMillis : options.bootMillis);
+		synchronized (this)
+		{
+			if (random.nextDouble() < options.startFailureRate)
+			{
+				failedStarts.incrementAndGet();
+				throw new PrlctlServer.PrlCtlFailedException(255, "Failed to start the VM: simulated failure.");
+			}
+			SimVM vm = find(vmId);
+			vm.state = "running";
+			if (vm.ip == null)
+				vm.ip = "10.211.55." + nextIp++;
+			vm.ipReadyAt = System.currentTimeMillis() + options.ipDelayMillis;
+			int cpus = 0;
+			long memMb = 0;
+			for (SimVM v : vms.values())
+			{
+				if ("running".equals(v.state))
+				{
+					cpus += v.cpus;
+					memMb += v.memMb;
+				}
+			}
+			if (cpus > options.hostCpus || memMb > options.hostRamMb)
+				overcommitViolations.incrementAndGet();
+		}
+		return "VM started.";
+	}
+
+	private String setState(String vmId, String state, long latency) throws Exception
+	{
+		synchronized (this)
+		{
+			find(vmId);
+		}
+		sleep(latency);
+		synchronized (this)
+		{
+			find(vmId).state = state;
+		}
+		return "VM " + state + ".";
+	}
+
+	@Override
+	public String suspend(String vmId) throws Exception
+	{
+		return setState(vmId, "suspended", options.suspendMillis);
+	}
+
+	@Override
+	public String stop(String vmId) throws Exception
+	{
+		return setState(vmId, "stopped", options.stopMillis);
+	}
+
+	@Override
+	public String pause(String vmId) throws Exception
+	{
+		return setState(vmId, "paused", 0);
+	}
+
+	@Override
+	public synchronized String set(String vmId, String... args) throws Exception
+	{
+		SimVM vm = find(vmId);
+		if (!"stopped".equals(vm.state))
+			throw new PrlctlServer.PrlCtlFailedException(255, "Unable to configure the VM: the VM is not stopped.");
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if ("--cpus".equals(args[i]))
+				vm.cpus = Integer.parseInt(args[i + 1]);
+			else if ("--memsize".equals(args[i]))
+				vm.memMb = Long.parseLong(args[i + 1]);
+		}
+		return "The VM has been successfully configured.";
+	}
+
+	@Override
+	public String snapshotSwitch(String vmId, String... args) throws Exception
+	{
+		return setState(vmId, "stopped", options.stopMillis);
+	}
+
+	@Override
+	public synchronized String cloneLinked(String templateId, String cloneName) throws Exception
+	{
+		SimVM template = find(templateId);
+		vms.put(cloneName, new SimVM(cloneName, template.cpus, template.memMb));
+		return "The VM has been successfully cloned.";
+	}
+
+	@Override
+	public synchronized String delete(String vmId) throws Exception
+	{
+		vms.remove(find(vmId).name);
+		return "The VM has been successfully removed.";
+	}
+}
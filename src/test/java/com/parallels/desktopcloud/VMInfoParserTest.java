@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class VMInfoParserTest
+{
+	private static List<VMInfo> parse(String json) throws IOException
+	{
+		return VMInfoParser.parse(new StringReader(json));
+	}
+
+	private static void assertMalformed(String json)
+	{
+		try
+		{
+			parse(json);
+			fail("Parsed malformed output: " + json);
+		}
+		catch (IOException expected)
+		{
+		}
+	}
+
+	@Test
+	public void emptyOutput() throws IOException
+	{
+		assertTrue(parse("").isEmpty());
+		assertTrue(parse("  \n").isEmpty());
+		assertTrue(parse("[]").isEmpty());
+		assertTrue(parse(" [ \n ] ").isEmpty());
+	}
+
+	@Test
+	public void fullListing() throws IOException
+	{
+		List<VMInfo> vms = parse("[{\"ID\": \"{1234}\", \"Name\": \"builder\", \"State\": \"running\","
+				+ " \"Hardware\": {\"cpu\": {\"cpus\": 4, \"VT-x\": true},"
+				+ " \"memory\": {\"size\": \"2048Mb\", \"auto\": \"off\"},"
+				+ " \"video\": {\"size\": \"64Mb\"}}},"
+				+ " {\"ID\": \"{5678}\", \"Name\": \"tester\", \"State\": \"stopped\"}]");
+		assertEquals(2, vms.size());
+		VMInfo vm = vms.get(0);
+		assertEquals("{1234}", vm.getId());
+		assertEquals("builder", vm.getName());
+		assertEquals("running", vm.getState());
+		assertEquals(4, vm.getCpus());
+		assertEquals(2048L << 20, vm.getMemSize());
+		assertEquals(64L << 20, vm.getVideoSize());
+		assertTrue(vm.hasHardwareInfo());
+		assertEquals("tester", vms.get(1).getName());
+		assertEquals(-1, vms.get(1).getMemSize());
+	}
+
+	@Test
+	public void fastListing() throws IOException
+	{
+		List<VMInfo> vms = parse("[{\"uuid\":\"{1234}\",\"status\":\"running\",\"ip_configured\":\"10.211.55.3\",\"name\":\"builder\"}]");
+		assertEquals(1, vms.size());
+		VMInfo vm = vms.get(0);
+		assertEquals("{1234}", vm.getId());
+		assertEquals("running", vm.getState());
+		assertEquals("10.211.55.3", vm.getIP());
+		assertEquals("builder", vm.getName());
+		assertTrue(vm.matches("builder"));
+		assertTrue(vm.matches("{1234}"));
+	}
+
+	@Test
+	public void escapes() throws IOException
+	{
+		List<VMInfo> vms = parse("[{\"Name\": \"a\\\"b\\\\c\\/d\\n\\t\\u00e9\\u0041\", \"ID\": \"\\\"\"}]");
+		assertEquals("a\"b\\c/d\n\t\u00e9A", vms.get(0).getName());
+		assertEquals("\"", vms.get(0).getId());
+	}
+
+	@Test
+	public void escapedKeysAndBracesInsideStrings() throws IOException
+	{
+		List<VMInfo> vms = parse("[{\"Description\": \"}]{[,:\", \"Na\\u006de\": \"builder\"}]");
+		assertEquals(1, vms.size());
+		assertEquals("builder", vms.get(0).getName());
+	}
+
+	@Test
+	public void nulls() throws IOException
+	{
+		List<VMInfo> vms = parse("[{\"uuid\": \"{1234}\", \"ip_configured\": null, \"name\": null, \"status\": \"stopped\"}]");
+		VMInfo vm = vms.get(0);
+		assertNull(vm.getIP());
+		assertNull(vm.getName());
+		assertEquals("stopped", vm.getState());
+	}
+
+	@Test
+	public void nestedArraysAreSkipped() throws IOException
+	{
+		List<VMInfo> vms = parse("[{\"Boot order\": [[\"hdd0\", [1, 2, {\"Name\": \"inner\"}]], []],"
+				+ " \"Snapshots\": [{\"State\": \"poweroff\", \"Hardware\": {\"cpu\": {\"cpus\": 8}}}],"
+				+ " \"Name\": \"builder\", \"State\": \"suspended\"}]");
+		VMInfo vm = vms.get(0);
+		assertEquals("builder", vm.getName());
+		assertEquals("suspended", vm.getState());
+		assertEquals(0, vm.getCpus());
+	}
+
+	@Test
+	public void onlyTopLevelAndHardwareFieldsAreProjected() throws IOException
+	{
+		List<VMInfo> vms = parse("[{\"Guest tools\": {\"state\": \"installed\", \"Name\": \"tools\"},"
+				+ " \"Hardware\": {\"cpu\": {\"cpus\": 2, \"extra\": {\"cpus\": 16}}, \"hdd0\": {\"size\": \"65536Mb\"}},"
+				+ " \"Name\": \"builder\"}]");
+		VMInfo vm = vms.get(0);
+		assertEquals("builder", vm.getName());
+		assertNull(vm.getState());
+		assertEquals(2, vm.getCpus());
+		assertEquals(-1, vm.getMemSize());
+	}
+
+	@Test
+	public void literalsAndWhitespace() throws IOException
+	{
+		List<VMInfo> vms = parse("\n[\n\t{ \"Hardware\" : { \"cpu\" : { \"cpus\" : 3 , \"VT-x\" : false } } ,\r\n"
+				+ " \"Uptime\" : 12.5e3 , \"Template\" : true }\n]\n");
+		assertEquals(3, vms.get(0).getCpus());
+	}
+
+	@Test
+	public void truncatedOutput()
+	{
+		String json = "[{\"ID\": \"{1234}\", \"Name\": \"a\\u00e9b\", \"Hardware\": {\"cpu\": {\"cpus\": 2}}, \"List\": [1, 2]}]";
+		for (int length = 1; length < json.length(); length++)
+			assertMalformed(json.substring(0, length));
+	}
+
+	@Test
+	public void malformedOutput()
+	{
+		assertMalformed("{}");
+		assertMalformed("[{\"Name\" \"builder\"}]");
+		assertMalformed("[{\"Name\": \"builder\";}]");
+		assertMalformed("[{Name: \"builder\"}]");
+		assertMalformed("[{\"Name\": }]");
+		assertMalformed("[{\"Name\": \"builder\"} {\"Name\": \"tester\"}]");
+		assertMalformed("[[1 2]]");
+		assertMalformed("Failed to get VM list: permission denied");
+	}
+
+	@Test
+	public void deepNestingIsRejected()
+	{
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < 100; i++)
+			json.append("{\"a\": ");
+		json.append("1");
+		for (int i = 0; i < 100; i++)
+			json.append("}");
+		json.append("]");
+		assertMalformed(json.toString());
+	}
+
+	@Test
+	public void memSizeStrings()
+	{
+		assertEquals(0L, VMInfoParser.memSizeStringToLong("0Mb"));
+		assertEquals(4096L << 20, VMInfoParser.memSizeStringToLong("4096Mb"));
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class VMInventoryCacheTest
+{
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	// Counts loads; each load may be held until released by the test.
+	private static class CountingCache extends VMInventoryCache
+	{
+		final AtomicInteger loads = new AtomicInteger();
+		volatile CountDownLatch started = new CountDownLatch(1);
+		volatile CountDownLatch release;
+		volatile Exception failure;
+
+		CountingCache(long ttl)
+		{
+			super(ttl);
+		}
+
+		@Override
+		protected List<VMInfo> load() throws Exception
+		{
+			loads.incrementAndGet();
+			started.countDown();
+			CountDownLatch r = release;
+			if (r != null)
+				r.await();
+			if (failure != null)
+				throw failure;
+			return Collections.singletonList(new VMInfo());
+		}
+	}
+
+	@After
+	public void tearDown()
+	{
+		executor.shutdownNow();
+	}
+
+	private Future<List<VMInfo>> getAsync(final VMInventoryCache cache)
+	{
+		return executor.submit(new Callable<List<VMInfo>>()
+		{
+			@Override
+			public List<VMInfo> call() throws Exception
+			{
+				return cache.get();
+			}
+		});
+	}
+
+	@Test
+	public void snapshotIsReusedWithinTtl() throws Exception
+	{
+		CountingCache cache = new CountingCache(60 * 1000);
+		List<VMInfo> first = cache.get();
+		assertSame(first, cache.get());
+		assertEquals(1, cache.loads.get());
+	}
+
+	@Test
+	public void staleSnapshotIsReloaded() throws Exception
+	{
+		CountingCache cache = new CountingCache(60 * 1000);
+		List<VMInfo> first = cache.get();
+		Thread.sleep(20);
+		assertNotSame(first, cache.get(10));
+		assertEquals(2, cache.loads.get());
+	}
+
+	@Test
+	public void concurrentCallersShareOneLoad() throws Exception
+	{
+		CountingCache cache = new CountingCache(60 * 1000);
+		cache.release = new CountDownLatch(1);
+		List<Future<List<VMInfo>>> results = new ArrayList<Future<List<VMInfo>>>();
+		results.add(getAsync(cache));
+		assertTrue(cache.started.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 7; i++)
+			results.add(getAsync(cache));
+		Thread.sleep(100);
+		cache.release.countDown();
+		List<VMInfo> first = results.get(0).get(10, TimeUnit.SECONDS);
+		for (Future<List<VMInfo>> result : results)
+			assertSame(first, result.get(10, TimeUnit.SECONDS));
+		assertEquals(1, cache.loads.get());
+	}
+
+	@Test
+	public void invalidateDropsSnapshot() throws Exception
+	{
+		CountingCache cache = new CountingCache(60 * 1000);
+		List<VMInfo> first = cache.get();
+		cache.invalidate();
+		assertNotSame(first, cache.get());
+		assertEquals(2, cache.loads.get());
+	}
+
+	@Test
+	public void refreshStartedBeforeInvalidateIsNotCached() throws Exception
+	{
+		CountingCache cache = new CountingCache(60 * 1000);
+		cache.release = new CountDownLatch(1);
+		Future<List<VMInfo>> early = getAsync(cache);
+		assertTrue(cache.started.await(10, TimeUnit.SECONDS));
+		cache.invalidate();
+		cache.release.countDown();
+		List<VMInfo> stale = early.get(10, TimeUnit.SECONDS);
+		cache.release = null;
+		assertNotSame(stale, cache.get());
+		assertEquals(2, cache.loads.get());
+	}
+
+	@Test
+	public void snapshotTimeIsLoadStart() throws Exception
+	{
+		CountingCache cache = new CountingCache(60 * 1000);
+		long before = System.currentTimeMillis();
+		VMInventoryCache.Snapshot snapshot = cache.getSnapshot();
+		assertTrue(snapshot.loadTime >= before);
+		assertTrue(snapshot.loadTime <= System.currentTimeMillis());
+		assertSame(snapshot.vms, cache.get());
+	}
+
+	@Test
+	public void failuresReachAllWaitersAndAreNotCached() throws Exception
+	{
+		CountingCache cache = new CountingCache(60 * 1000);
+		cache.release = new CountDownLatch(1);
+		cache.failure = new IOException("prlctl failed");
+		List<Future<List<VMInfo>>> results = new ArrayList<Future<List<VMInfo>>>();
+		results.add(getAsync(cache));
+		assertTrue(cache.started.await(10, TimeUnit.SECONDS));
+		results.add(getAsync(cache));
+		Thread.sleep(100);
+		cache.release.countDown();
+		for (Future<List<VMInfo>> result : results)
+		{
+			try
+			{
+				result.get(10, TimeUnit.SECONDS);
+				fail("Load failure was not reported");
+			}
+			catch (ExecutionException ex)
+			{
+				assertSame(cache.failure, ex.getCause());
+			}
+		}
+		cache.failure = null;
+		cache.release = null;
+		assertEquals(1, cache.get().size());
+	}
+
+	@Test
+	public void peekNeverLoads() throws Exception
+	{
+		CountingCache cache = new CountingCache(60 * 1000);
+		assertNull(cache.peek());
+		List<VMInfo> loaded = cache.get();
+		cache.invalidate();
+		assertSame(loaded, cache.peek().vms);
+		assertEquals(1, cache.loads.get());
+	}
+}
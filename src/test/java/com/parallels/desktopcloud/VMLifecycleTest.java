@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class VMLifecycleTest
+{
+	@Test
+	public void provisioningAndRelease()
+	{
+		VMLifecycle lifecycle = new VMLifecycle();
+		assertEquals(VMLifecycle.State.Free, lifecycle.get());
+		assertFalse(lifecycle.isBusy());
+		assertTrue(lifecycle.reserve());
+		assertTrue(lifecycle.isProvisioned());
+		assertTrue(lifecycle.transition(VMLifecycle.State.Reserved, VMLifecycle.State.Starting));
+		assertTrue(lifecycle.transition(VMLifecycle.State.Starting, VMLifecycle.State.WaitingForIp));
+		assertTrue(lifecycle.transition(VMLifecycle.State.WaitingForIp, VMLifecycle.State.Online));
+		assertTrue(lifecycle.beginRelease());
+		assertEquals(VMLifecycle.State.Releasing, lifecycle.get());
+		assertFalse(lifecycle.isProvisioned());
+		assertTrue(lifecycle.isBusy());
+		lifecycle.finishRelease(true);
+		assertEquals(VMLifecycle.State.Free, lifecycle.get());
+	}
+
+	@Test
+	public void reserveOnlyFromFreeOrFailed()
+	{
+		VMLifecycle lifecycle = new VMLifecycle();
+		assertTrue(lifecycle.reserve());
+		assertFalse(lifecycle.reserve());
+		lifecycle.transition(VMLifecycle.State.Reserved, VMLifecycle.State.Failed);
+		assertFalse(lifecycle.isBusy());
+		assertTrue(lifecycle.reserve());
+		assertEquals(VMLifecycle.State.Reserved, lifecycle.get());
+	}
+
+	@Test
+	public void transitionNeedsExpectedState()
+	{
+		VMLifecycle lifecycle = new VMLifecycle();
+		assertFalse(lifecycle.transition(VMLifecycle.State.Reserved, VMLifecycle.State.Starting));
+		assertEquals(VMLifecycle.State.Free, lifecycle.get());
+	}
+
+	@Test
+	public void startingVMCannotBeReleased()
+	{
+		VMLifecycle lifecycle = new VMLifecycle();
+		lifecycle.reserve();
+		lifecycle.transition(VMLifecycle.State.Reserved, VMLifecycle.State.Starting);
+		assertFalse(lifecycle.beginRelease());
+		assertTrue(lifecycle.transition(VMLifecycle.State.Starting, VMLifecycle.State.Reserved));
+		assertTrue(lifecycle.beginRelease());
+		assertFalse(lifecycle.beginRelease());
+		lifecycle.finishRelease(false);
+		assertEquals(VMLifecycle.State.Failed, lifecycle.get());
+	}
+
+	@Test
+	public void prevVMStateDefaultsToSuspended()
+	{
+		VMLifecycle lifecycle = new VMLifecycle();
+		assertEquals(ParallelsDesktopVM.VMStates.Suspended, lifecycle.getPrevVMState());
+		lifecycle.setPrevVMState(ParallelsDesktopVM.VMStates.Stopped);
+		assertEquals(ParallelsDesktopVM.VMStates.Stopped, lifecycle.getPrevVMState());
+	}
+
+	private static int countWinners(int threads, final Callable<Boolean> step) throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			final CountDownLatch go = new CountDownLatch(1);
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < threads; i++)
+			{
+				results.add(executor.submit(new Callable<Boolean>()
+				{
+					@Override
+					public Boolean call() throws Exception
+					{
+						go.await();
+						return step.call();
+					}
+				}));
+			}
+			go.countDown();
+			int winners = 0;
+			for (Future<Boolean> result : results)
+			{
+				if (result.get())
+					++winners;
+			}
+			return winners;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void onlyOneRacingThreadWinsEachStep() throws Exception
+	{
+		for (int round = 0; round < 50; round++)
+		{
+			final VMLifecycle lifecycle = new VMLifecycle();
+			assertEquals(1, countWinners(8, new Callable<Boolean>()
+			{
+				@Override
+				public Boolean call()
+				{
+					return lifecycle.reserve();
+				}
+			}));
+			lifecycle.transition(VMLifecycle.State.Reserved, VMLifecycle.State.Starting);
+			lifecycle.transition(VMLifecycle.State.Starting, VMLifecycle.State.WaitingForIp);
+			assertEquals(1, countWinners(8, new Callable<Boolean>()
+			{
+				@Override
+				public Boolean call()
+				{
+					return lifecycle.beginRelease();
+				}
+			}));
+		}
+	}
+}
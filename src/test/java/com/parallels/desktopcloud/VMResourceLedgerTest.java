@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ *
+ * (c) 2004-2015. Parallels IP Holdings GmbH. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.parallels.desktopcloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class VMResourceLedgerTest
+{
+	private static final long GB = 1L << 30;
+	private static final long HOST_RESERVED_RAM = GB;
+
+	private static VMResources vm(int cpus, long ram)
+	{
+		return new VMResources(cpus, ram);
+	}
+
+	private static VMInfo vmInfo(String id, String name, String state, int cpus, long ram)
+	{
+		VMInfo info = new VMInfo();
+		info.setId(id);
+		info.setName(name);
+		info.setState(state);
+		info.setCpus(cpus);
+		info.setMemSize(ram);
+		return info;
+	}
+
+	private static VMResourceLedger ledger(int cpus, long ram)
+	{
+		return new VMResourceLedger(new VMResources(cpus, ram));
+	}
+
+	@Test
+	public void reservationsStayWithinCapacity()
+	{
+		VMResourceLedger ledger = ledger(4, 8 * GB);
+		assertTrue(ledger.reserve("vm1", vm(2, 2 * GB)));
+		assertTrue(ledger.reserve("vm2", vm(2, 2 * GB)));
+		assertFalse(ledger.reserve("vm3", vm(1, GB)));
+		assertEquals(4, ledger.getUsed().cpus);
+		assertEquals(HOST_RESERVED_RAM + 4 * GB, ledger.getUsed().ram);
+	}
+
+	@Test
+	public void hostRamIsKeptForTheHost()
+	{
+		VMResourceLedger ledger = ledger(8, 4 * GB);
+		assertTrue(ledger.reserve("vm1", vm(1, 3 * GB)));
+		assertFalse(ledger.reserve("vm2", vm(1, 1)));
+	}
+
+	@Test
+	public void repeatedReservationIsCountedOnce()
+	{
+		VMResourceLedger ledger = ledger(4, 8 * GB);
+		assertTrue(ledger.reserve("vm1", vm(2, GB)));
+		assertTrue(ledger.reserve("vm1", vm(2, GB)));
+		ledger.commit("vm1");
+		assertTrue(ledger.reserve("vm1", vm(2, GB)));
+		assertEquals(2, ledger.getUsed().cpus);
+	}
+
+	@Test
+	public void releaseFreesReservedAndRunningVMs()
+	{
+		VMResourceLedger ledger = ledger(4, 8 * GB);
+		ledger.reserve("vm1", vm(2, GB));
+		ledger.reserve("vm2", vm(2, GB));
+		ledger.commit("vm2");
+		ledger.release("vm1");
+		ledger.release("vm2");
+		ledger.release("vm3");
+		assertEquals(0, ledger.getUsed().cpus);
+		assertEquals(HOST_RESERVED_RAM, ledger.getUsed().ram);
+	}
+
+	@Test
+	public void trackedVMsAreCountedOnce()
+	{
+		VMResourceLedger ledger = ledger(4, 8 * GB);
+		ledger.track("vm1", vm(2, GB));
+		ledger.track("vm1", vm(2, GB));
+		assertEquals(2, ledger.getUsed().cpus);
+		assertFalse(ledger.reserve("vm2", vm(3, GB)));
+	}
+
+	@Test
+	public void reconcileAccountsRunningVMsFromInventory()
+	{
+		VMResourceLedger ledger = ledger(8, 16 * GB);
+		assertTrue(ledger.isReconcileDue());
+		List<VMInfo> inventory = new ArrayList<VMInfo>();
+		inventory.add(vmInfo("{1}", "running", "running", 2, GB));
+		inventory.add(vmInfo("{2}", "paused", "paused", 1, GB));
+		inventory.add(vmInfo("{3}", "stopped", "stopped", 4, GB));
+		inventory.add(vmInfo("{4}", "suspended", "suspended", 4, GB));
+		ledger.reconcile(inventory, System.currentTimeMillis());
+		assertFalse(ledger.isReconcileDue());
+		assertEquals(3, ledger.getUsed().cpus);
+		long expectedRam = HOST_RESERVED_RAM + VMResources.fromVMInfo(inventory.get(0)).ram
+				+ VMResources.fromVMInfo(inventory.get(1)).ram;
+		assertEquals(expectedRam, ledger.getUsed().ram);
+	}
+
+	@Test
+	public void reconcileDropsVMsWhichStopped()
+	{
+		VMResourceLedger ledger = ledger(8, 16 * GB);
+		ledger.reserve("builder", vm(2, GB));
+		ledger.commit("builder");
+		List<VMInfo> inventory = new ArrayList<VMInfo>();
+		inventory.add(vmInfo("{1}", "builder", "stopped", 2, GB));
+		ledger.reconcile(inventory, System.currentTimeMillis() + 1);
+		assertEquals(0, ledger.getUsed().cpus);
+	}
+
+	@Test
+	public void reconcileMatchesKnownVMsByName()
+	{
+		VMResourceLedger ledger = ledger(8, 16 * GB);
+		ledger.reserve("builder", vm(2, GB));
+		List<VMInfo> inventory = new ArrayList<VMInfo>();
+		inventory.add(vmInfo("{1}", "builder", "running", 2, GB));
+		ledger.reconcile(inventory, System.currentTimeMillis());
+		// Still reserved, so it isn't counted a second time.
+		assertEquals(2, ledger.getUsed().cpus);
+		ledger.commit("builder");
+		ledger.release("builder");
+		assertEquals(0, ledger.getUsed().cpus);
+	}
+
+	@Test
+	public void reconcileKeepsVMsCommittedAfterInventoryWasLoaded() throws Exception
+	{
+		VMResourceLedger ledger = ledger(8, 16 * GB);
+		long inventoryTime = System.currentTimeMillis();
+		Thread.sleep(5);
+		ledger.reserve("builder", vm(2, GB));
+		ledger.commit("builder");
+		// The inventory predates the start, so it still shows the VM stopped.
+		List<VMInfo> inventory = new ArrayList<VMInfo>();
+		inventory.add(vmInfo("{1}", "builder", "stopped", 2, GB));
+		ledger.reconcile(inventory, inventoryTime);
+		assertEquals(2, ledger.getUsed().cpus);
+		assertEquals(HOST_RESERVED_RAM + GB, ledger.getUsed().ram);
+
+		// Once an inventory loaded after the start is seen, it is authoritative.
+		Thread.sleep(5);
+		inventory.clear();
+		inventory.add(vmInfo("{1}", "builder", "running", 2, GB));
+		ledger.reconcile(inventory, System.currentTimeMillis());
+		assertEquals(2, ledger.getUsed().cpus);
+		ledger.release("builder");
+		assertEquals(0, ledger.getUsed().cpus);
+	}
+
+	@Test
+	public void overcommitScalesCapacity()
+	{
+		VMResourceLedger ledger = ledger(4, 8 * GB);
+		ledger.setOvercommit(2.0, 1.0);
+		assertTrue(ledger.reserve("vm1", vm(4, GB)));
+		assertTrue(ledger.reserve("vm2", vm(4, GB)));
+		assertFalse(ledger.reserve("vm3", vm(1, GB)));
+		assertFalse(ledger.reserve("vm4", vm(0, 6 * GB)));
+	}
+
+	@Test
+	public void busyHostTakesNoMoreVMs()
+	{
+		VMResourceLedger ledger = ledger(4, 8 * GB);
+		ledger.updateLoad(new HostLoad(4 * GB, 0, 0, 3.5));
+		assertFalse(ledger.reserve("vm1", vm(1, GB)));
+		assertNull(ledger.getFitScore(vm(1, GB)));
+		ledger.updateLoad(new HostLoad(4 * GB, 0, 0, 0.5));
+		assertTrue(ledger.reserve("vm1", vm(1, GB)));
+	}
+
+	@Test
+	public void swappingHostTakesNoMoreVMs()
+	{
+		VMResourceLedger ledger = ledger(8, 16 * GB);
+		ledger.updateLoad(new HostLoad(4 * GB, 8 * GB, 8 * GB, 0));
+		assertTrue(ledger.reserve("vm1", vm(1, GB)));
+		ledger.updateLoad(new HostLoad(4 * GB, 8 * GB, 7 * GB, 0));
+		assertFalse(ledger.reserve("vm2", vm(1, GB)));
+		ledger.updateLoad(new HostLoad(4 * GB, 8 * GB, 7 * GB, 0));
+		assertTrue(ledger.reserve("vm2", vm(1, GB)));
+	}
+
+	@Test
+	public void freeRamLimitsOvercommittedHost()
+	{
+		VMResourceLedger ledger = ledger(8, 16 * GB);
+		ledger.setOvercommit(1.0, 1.5);
+		ledger.updateLoad(new HostLoad(2 * GB, 0, 0, 0));
+		assertFalse(ledger.reserve("vm1", vm(1, 3 * GB)));
+		assertTrue(ledger.reserve("vm1", vm(1, GB)));
+	}
+
+	@Test
+	public void fitScorePrefersTighterHosts()
+	{
+		VMResourceLedger small = ledger(4, 8 * GB);
+		VMResourceLedger large = ledger(16, 64 * GB);
+		Double smallScore = small.getFitScore(vm(2, 2 * GB));
+		Double largeScore = large.getFitScore(vm(2, 2 * GB));
+		assertNotNull(smallScore);
+		assertNotNull(largeScore);
+		assertTrue(smallScore < largeScore);
+		assertNull(small.getFitScore(vm(8, GB)));
+	}
+}